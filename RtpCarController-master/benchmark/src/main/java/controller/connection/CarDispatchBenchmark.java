@@ -0,0 +1,68 @@
+package controller.connection;
+
+import controller.connection.transport.LoopbackTransport;
+import exception.NetworkConnectionException;
+import model.Car;
+import model.Throttle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a Car state change from the input thread up to the command being queued for the sender: the Car notifies
+ * its listeners, ConnController.carChanged() compares the new state and hands the command to the ConnOutputController.
+ * The connection runs over a LoopbackTransport to a LoopbackCar. The LoopbackCar does not echo, so the liveness
+ * watchdog is disabled to keep the connection up for the whole trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CarDispatchBenchmark {
+    private Car car;
+    private int angle;
+
+    @Setup(Level.Trial)
+    public void connect() throws NetworkConnectionException, InterruptedException {
+        LoopbackCar.bind();
+        car = new Car();
+        ConnController connection = ConnController.getInstance();
+        connection.registerCar(car);
+        connection.setTransportFactory(LoopbackTransport::new);
+        connection.setLivenessTimeout(0);
+        connection.connect("127.0.0.1", String.valueOf(LoopbackCar.PORT));
+        while (!connection.isActive()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() {
+        ConnController.getInstance().disconnect();
+    }
+
+    @Benchmark
+    public void steer() {
+        angle = angle == 180 ? 0 : angle + 1;
+        car.steer(angle);
+    }
+
+    @Benchmark
+    public void throttle() {
+        angle = angle == 180 ? 0 : angle + 1;
+        car.throttle(angle % 2 == 0 ? Throttle.FORWARD : Throttle.NEUTRAL);
+    }
+}
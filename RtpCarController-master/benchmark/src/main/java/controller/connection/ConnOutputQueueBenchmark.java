@@ -0,0 +1,63 @@
+package controller.connection;
+
+import model.Throttle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding to and reading from the ConnOutputQueue under contention: several input threads replace the
+ * steering and throttle commands while a single sender drains them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConnOutputQueueBenchmark {
+    private static final Throttle[] THROTTLES = Throttle.values();
+
+    private final ConnOutputController.ConnOutputQueue queue = new ConnOutputController.ConnOutputQueue();
+
+    @State(Scope.Thread)
+    public static class Input {
+        int angle;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void add(Input input) {
+        input.angle = input.angle == 180 ? 0 : input.angle + 1;
+        queue.setSteer(input.angle);
+        queue.setThrottle(THROTTLES[input.angle % THROTTLES.length]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int read() {
+        String control = queue.pollControl();
+        return queue.takeSteer() + queue.takeThrottle() + (control == null ? 0 : 1);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public int addAndRead(Input input) {
+        input.angle = input.angle == 180 ? 0 : input.angle + 1;
+        queue.setSteer(input.angle);
+        return queue.takeSteer();
+    }
+}
@@ -0,0 +1,87 @@
+package controller.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the messages received from a car, which replaced ConnInputController.parseInput(). Every operation
+ * frames and dispatches a batch of typical inbound lines (stamped echoes of commands and heartbeats, plus a close
+ * message).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InboundFramerBenchmark {
+    private static final String LINES = "STEER 90 1 1000\nTHROTTLE FORWARD 2 1250\nHB 3 501250\nSTEER 0 4 501800\n"
+            + "STEER 180 5 4294967295\nTHROTTLE NEUTRAL 6 12\nCLOSE\n";
+
+    private InboundFramer framer;
+    private ReadableByteChannel channel;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ByteBuffer lines = ByteBuffer.wrap(LINES.getBytes(StandardCharsets.US_ASCII));
+        channel = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                lines.rewind();
+                dst.put(lines);
+                return lines.capacity();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        framer = new InboundFramer(new InboundFramer.Handler() {
+            @Override
+            public void onHandshake() {
+                blackhole.consume(1);
+            }
+
+            @Override
+            public void onBinaryOffer() {
+                blackhole.consume(2);
+            }
+
+            @Override
+            public void onClose() {
+                blackhole.consume(3);
+            }
+
+            @Override
+            public void onEcho(int sequence, int timestamp) {
+                blackhole.consume(sequence);
+                blackhole.consume(timestamp);
+            }
+        });
+    }
+
+    @Benchmark
+    public int frame() throws IOException {
+        return framer.read(channel);
+    }
+}
@@ -0,0 +1,45 @@
+package controller.connection;
+
+import controller.connection.transport.LoopbackTransport;
+import util.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal in-process car for the benchmarks: answers the handshake and discards everything else, so that the client
+ * side of the control path can be measured without a network or a TestServer.
+ */
+class LoopbackCar implements LoopbackTransport.Server {
+    static final int PORT = 1;
+
+    /**
+     * Registers a LoopbackCar under LoopbackCar.PORT.
+     */
+    static void bind() {
+        LoopbackTransport.bind(PORT, new LoopbackCar());
+    }
+
+    @Override
+    public void accept(ReadableByteChannel input, WritableByteChannel output) {
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            try {
+                // The first message is always the text handshake
+                if (input.read(buffer) > 0) {
+                    output.write(ByteBuffer.wrap((Protocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII)));
+                }
+                do {
+                    buffer.clear();
+                } while (input.read(buffer) >= 0);
+            } catch (IOException e) {
+                // The benchmark closed the connection
+            }
+        }, "LoopbackCar");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,80 @@
+package util;
+
+import model.Throttle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a steering or throttle command, through the String API and through the allocation-free
+ * ByteBuffer API.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final Throttle[] THROTTLES = Throttle.values();
+
+    private ByteBuffer buffer;
+    private int angle;
+    private int dir;
+
+    @Setup
+    public void setUp() {
+        buffer = ByteBuffer.allocate(Protocol.MAX_COMMAND_SIZE);
+    }
+
+    private int nextAngle() {
+        angle = angle == Protocol.MAX_STEER_ANGLE ? 0 : angle + 1;
+        return angle;
+    }
+
+    private Throttle nextThrottle() {
+        dir = (dir + 1) % THROTTLES.length;
+        return THROTTLES[dir];
+    }
+
+    @Benchmark
+    public String steeringCommandString() {
+        return Protocol.getSteeringCommand(nextAngle());
+    }
+
+    @Benchmark
+    public String throttleCommandString() {
+        return Protocol.getThrottleCommand(nextThrottle());
+    }
+
+    @Benchmark
+    public ByteBuffer steeringCommandBuffer() {
+        buffer.clear();
+        Protocol.putSteeringCommand(buffer, nextAngle());
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer throttleCommandBuffer() {
+        buffer.clear();
+        Protocol.putThrottleCommand(buffer, nextThrottle());
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer steeringFrame() {
+        buffer.clear();
+        Protocol.putFrame(buffer, Protocol.OP_STEER, nextAngle(), Throttle.FORWARD, angle, angle);
+        return buffer;
+    }
+}
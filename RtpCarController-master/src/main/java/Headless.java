@@ -0,0 +1,283 @@
+import controller.DrivingController;
+import controller.connection.ConnController;
+import controller.connection.SessionReader;
+import controller.connection.SessionRecorder;
+import controller.connection.SessionReplayer;
+import exception.NetworkConnectionException;
+import model.Car;
+import model.Steer;
+import model.Throttle;
+import util.Protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Launcher running the controller without JavaFX, for control nodes without a display. It builds the same stack as
+ * the HomeController (a Car registered with the ConnController and DrivingController), connects to the car and then
+ * takes its driving commands from one control source:
+ *
+ * - a script read from standard input (the default) or from the file given with --script=FILE,
+ * - a control socket on the loopback interface, given with --socket=PORT, which accepts script commands from one local
+ *   client at a time and answers every command with OK or ERROR, or
+ * - a recorded session, given with --replay=SEGMENT (any segment file of the session) and replayed at --speed=1 times
+ *   the recorded pace, or as fast as possible with --speed=max.
+ *
+ * Script commands, one per line: "steer left|neutral|right|ANGLE", "throttle forward|reverse|neutral [POWER]",
+ * "wait MILLISECONDS", "stats" and "quit". Empty lines and lines starting with # are ignored.
+ *
+ * Other options: --host=127.0.0.1 --port=65432 --text (do not negotiate the binary framing) --no-reconnect
+ * --record=DIRECTORY (record the session).
+ */
+public class Headless {
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static final long POLL_PERIOD = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ConnController connController;
+    private final DrivingController drivingController;
+    private volatile boolean stopped;
+
+    private Headless(Car car) {
+        connController = ConnController.getInstance();
+        connController.registerCar(car);
+        drivingController = DrivingController.getInstance();
+        drivingController.registerCar(car);
+    }
+
+    public static void main(String... args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int split = arg.indexOf('=');
+                options.put(split < 0 ? arg.substring(2) : arg.substring(2, split),
+                        split < 0 ? "" : arg.substring(split + 1));
+            }
+        }
+        String host = options.getOrDefault("host", "127.0.0.1");
+        String port = options.getOrDefault("port", "65432");
+        if (!ConnController.isValidServerAddress(host) || !ConnController.isValidPortNumber(port)) {
+            System.out.println("Invalid server address or port: " + host + ":" + port);
+            System.exit(2);
+        }
+
+        Car car = new Car();
+        Headless headless = new Headless(car);
+        ConnController connController = headless.connController;
+        connController.setBinaryEnabled(!options.containsKey("text"));
+        connController.setAutoReconnect(!options.containsKey("no-reconnect"));
+        SessionRecorder recorder = null;
+        if (options.containsKey("record")) {
+            recorder = new SessionRecorder(Paths.get(options.get("record")));
+            connController.setRecorder(recorder);
+        }
+        SessionRecorder openRecorder = recorder;
+        // Leaves the car neutral and closes the connection properly when the process is terminated
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> headless.shutdown(openRecorder), "Headless-shutdown"));
+
+        try {
+            connController.connect(host, port);
+        } catch (NetworkConnectionException e) {
+            System.out.println("Error while trying to connect: " + e.getMessage());
+            System.exit(1);
+        }
+        if (!headless.awaitHandshake()) {
+            System.out.println("The car did not answer the handshake");
+            System.exit(1);
+        }
+        System.out.println("Connected to " + host + ":" + port);
+
+        if (options.containsKey("replay")) {
+            headless.replay(car, options.get("replay"), options.getOrDefault("speed", "1"));
+        } else if (options.containsKey("socket")) {
+            headless.serve(Integer.parseInt(options.get("socket")));
+        } else if (options.containsKey("script")) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(options.get("script")), StandardCharsets.UTF_8)) {
+                headless.run(reader, System.out);
+            }
+        } else {
+            headless.run(new InputStreamReader(System.in, StandardCharsets.UTF_8), System.out);
+        }
+        // The shutdown hook disconnects
+        System.exit(0);
+    }
+
+    /**
+     * Waits until the car has answered the handshake.
+     * @return True if the connection was validated, false if the car did not answer in time.
+     */
+    private boolean awaitHandshake() {
+        long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT;
+        while (!connController.isActive()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, POLL_PERIOD);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the script commands read from the given reader until the end of the input or a quit command.
+     * @param input The script to run.
+     * @param output The stream to write the answers and statistics to.
+     * @throws IOException If reading the script failed.
+     */
+    private void run(Reader input, PrintStream output) throws IOException {
+        BufferedReader reader = new BufferedReader(input);
+        String line;
+        while (!stopped && (line = reader.readLine()) != null) {
+            try {
+                String answer = execute(line);
+                if (answer != null) {
+                    output.println(answer);
+                }
+            } catch (IllegalArgumentException e) {
+                output.println("Invalid command '" + line.trim() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts local clients on the given port one at a time and runs the script commands they send, until one of them
+     * sends a quit command.
+     * @param port The port of the control socket on the loopback interface.
+     * @throws IOException If the control socket could not be opened.
+     */
+    private void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            System.out.println("Accepting control connections on " + serverSocket.getLocalSocketAddress());
+            while (!stopped) {
+                try (Socket socket = serverSocket.accept();
+                     BufferedReader reader = new BufferedReader(
+                             new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+                    String line;
+                    while (!stopped && (line = reader.readLine()) != null) {
+                        try {
+                            String answer = execute(line);
+                            writer.println(answer == null ? "OK" : "OK " + answer);
+                        } catch (IllegalArgumentException e) {
+                            writer.println("ERROR " + e.getMessage());
+                        }
+                    }
+                } catch (IOException e) {
+                    // The client went away; wait for the next one
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays a recorded session and prints the comparison with the recording.
+     * @param car The car to replay the commands on.
+     * @param segment Any segment file of the session.
+     * @param speed The pace relative to the recording, or "max" to replay as fast as possible.
+     * @throws IOException If reading the session failed.
+     */
+    private void replay(Car car, String segment, String speed) throws IOException {
+        SessionReplayer replayer = new SessionReplayer(car);
+        replayer.setSpeed(speed.equals("max") ? SessionReplayer.AS_FAST_AS_POSSIBLE : Double.parseDouble(speed));
+        try (SessionReader reader = SessionReader.open(Paths.get(segment))) {
+            System.out.println(replayer.replay(reader));
+        }
+    }
+
+    /**
+     * Executes a single script command.
+     * @param line The command.
+     * @return The text to answer the command with, or null if it has none.
+     * @throws IllegalArgumentException If the command is not valid.
+     */
+    private String execute(String line) {
+        String[] words = line.trim().split("\\s+");
+        if (words[0].isEmpty() || words[0].startsWith("#")) {
+            return null;
+        }
+        switch (words[0].toLowerCase()) {
+            case "steer":
+                requireArguments(words, 1, 1);
+                steer(words[1]);
+                return null;
+            case "throttle":
+                requireArguments(words, 1, 2);
+                Throttle dir = Throttle.valueOf(words[1].toUpperCase());
+                drivingController.throttle(dir, words.length > 2 ? parse(words[2], Protocol.MAX_POWER)
+                        : Protocol.MAX_POWER);
+                return null;
+            case "wait":
+                requireArguments(words, 1, 1);
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(parse(words[1], Integer.MAX_VALUE)));
+                return null;
+            case "stats":
+                return (connController.isActive() ? "connected" : "disconnected") + ", smoothed rtt "
+                        + TimeUnit.NANOSECONDS.toMicros(connController.getSmoothedRtt()) + "us, "
+                        + connController.getMetrics();
+            case "quit":
+                stopped = true;
+                return null;
+            default:
+                throw new IllegalArgumentException("unknown command");
+        }
+    }
+
+    private void steer(String value) {
+        for (Steer dir : Steer.values()) {
+            if (dir.name().equalsIgnoreCase(value)) {
+                drivingController.steer(dir);
+                return;
+            }
+        }
+        drivingController.steer(parse(value, Protocol.MAX_STEER_ANGLE));
+    }
+
+    private static void requireArguments(String[] words, int min, int max) {
+        if (words.length - 1 < min || words.length - 1 > max) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+    }
+
+    /**
+     * Parses a number between 0 and the given maximum.
+     * @throws IllegalArgumentException If the value is not a number in that range.
+     */
+    private static int parse(String value, int max) {
+        int number = Integer.parseInt(value);
+        if (number < 0 || number > max) {
+            throw new IllegalArgumentException(value + " is not between 0 and " + max);
+        }
+        return number;
+    }
+
+    /**
+     * Neutralises the car and disconnects, giving the sender a moment to send the neutral state, and closes the
+     * recorder.
+     * @param recorder The recorder of the session, or null if it is not recorded.
+     */
+    private void shutdown(SessionRecorder recorder) {
+        stopped = true;
+        if (connController.isActive()) {
+            drivingController.throttle(Throttle.NEUTRAL);
+            drivingController.steer(Steer.NEUTRAL);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        connController.disconnect();
+        if (recorder != null) {
+            connController.setRecorder(null);
+            recorder.close();
+        }
+    }
+}
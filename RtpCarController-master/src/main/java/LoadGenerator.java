@@ -0,0 +1,491 @@
+import model.Throttle;
+import util.LatencyHistogram;
+import util.Protocol;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless tool simulating many controller clients against a TestServer (or a real car park) to measure the capacity of
+ * the protocol. Every session performs the handshake, sends steering and throttle commands following the configured
+ * pattern and a heartbeat whenever it has been idle for Protocol.HEARTBEAT_PERIOD. Sessions accept the stamped text
+ * commands (and the binary framing if enabled), and echoes are matched to the commands by their sequence number and
+ * timestamp, which gives a round-trip time per command; other lines, such as telemetry, are ignored. Against a car
+ * that offers neither, commands are sent unstamped and no round-trip times are measured.
+ *
+ * Options: --host=127.0.0.1 --port=65432 --sessions=100 --duration=30 (seconds) --rate=20 (commands per second per
+ * session) --pattern=sweep|random|burst|idle --burst=10 --threads=2 --binary --report=loadgen-report.txt
+ */
+public class LoadGenerator {
+    private static final byte[] HANDSHAKE = Protocol.HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BINARY_HANDSHAKE = Protocol.BINARY_HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STAMPED_HANDSHAKE = Protocol.STAMPED_HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(Protocol.HEARTBEAT_PERIOD);
+
+    private final InetSocketAddress address;
+    private final int sessionCount;
+    private final long durationNanos;
+    private final long intervalNanos;
+    private final Pattern pattern;
+    private final int burst;
+    private final int threads;
+    private final boolean binary;
+
+    private final LatencyHistogram handshakes;
+    private final LatencyHistogram commands;
+    private final LatencyHistogram heartbeats;
+    private final AtomicLong sent;
+    private final AtomicLong received;
+    private final AtomicLong failures;
+
+    /**
+     * The input pattern with which every session drives its car.
+     */
+    enum Pattern {
+        /** Sweep the steering angle back and forth, toggling the throttle every ten commands. */
+        SWEEP,
+        /** Send random steering angles and throttle directions. */
+        RANDOM,
+        /** Send bursts of commands back to back at the configured rate. */
+        BURST,
+        /** Only send heartbeats. */
+        IDLE
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        address = new InetSocketAddress(options.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(options.getOrDefault("port", "65432")));
+        sessionCount = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        intervalNanos = TimeUnit.SECONDS.toNanos(1) / Integer.parseInt(options.getOrDefault("rate", "20"));
+        pattern = Pattern.valueOf(options.getOrDefault("pattern", "sweep").toUpperCase());
+        burst = Integer.parseInt(options.getOrDefault("burst", "10"));
+        threads = Integer.parseInt(options.getOrDefault("threads", "2"));
+        binary = options.containsKey("binary");
+        handshakes = new LatencyHistogram();
+        commands = new LatencyHistogram();
+        heartbeats = new LatencyHistogram();
+        sent = new AtomicLong();
+        received = new AtomicLong();
+        failures = new AtomicLong();
+    }
+
+    public static void main(String... args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int split = arg.indexOf('=');
+                options.put(split < 0 ? arg.substring(2) : arg.substring(2, split),
+                        split < 0 ? "" : arg.substring(split + 1));
+            }
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        String report = generator.run();
+        System.out.print(report);
+        String reportFile = options.getOrDefault("report", "loadgen-report.txt");
+        try (PrintWriter writer = new PrintWriter(new FileWriter(reportFile))) {
+            writer.print(report);
+        }
+    }
+
+    /**
+     * Runs all sessions for the configured duration and returns the report.
+     * @return The report of the run.
+     * @throws Exception If a worker thread failed.
+     */
+    private String run() throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker(sessionCount / threads + (i < sessionCount % threads ? 1 : 0), i));
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        double seconds = elapsed / 1e9;
+
+        StringBuilder report = new StringBuilder();
+        report.append("Load generator report ").append(LocalDateTime.now()).append('\n');
+        report.append(String.format("target=%s sessions=%d duration=%.1fs rate=%d/s pattern=%s binary=%s%n",
+                address, sessionCount, seconds, TimeUnit.SECONDS.toNanos(1) / intervalNanos, pattern, binary));
+        report.append(String.format("failed sessions: %d%n", failures.get()));
+        report.append(String.format("sent: %d (%.1f/s), echoes received: %d (%.1f/s)%n",
+                sent.get(), sent.get() / seconds, received.get(), received.get() / seconds));
+        report.append("handshake:  ").append(handshakes).append('\n');
+        report.append("command:    ").append(commands).append('\n');
+        report.append("heartbeat:  ").append(heartbeats).append('\n');
+        return report.toString();
+    }
+
+    /**
+     * Thread driving a share of the sessions over a single selector.
+     */
+    private class Worker extends Thread {
+        private final Selector selector;
+        private final List<Session> sessions;
+
+        Worker(int count, int index) throws IOException {
+            super("LoadGenerator-" + index);
+            selector = Selector.open();
+            sessions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                sessions.add(new Session(new Random(index * 100_000L + i)));
+            }
+        }
+
+        @Override
+        public void run() {
+            long end = System.nanoTime() + durationNanos;
+            for (Session session : sessions) {
+                try {
+                    session.connect(selector);
+                } catch (IOException e) {
+                    session.fail();
+                }
+            }
+            try {
+                while (System.nanoTime() < end) {
+                    selector.select(1);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                session.finishConnect();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (IOException e) {
+                            session.fail();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    for (Session session : sessions) {
+                        try {
+                            session.tick(now);
+                        } catch (IOException e) {
+                            session.fail();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failures.addAndGet(sessions.size());
+            } finally {
+                for (Session session : sessions) {
+                    session.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // The run is over either way
+                }
+            }
+        }
+    }
+
+    /**
+     * A single simulated controller client.
+     */
+    private class Session {
+        // Number of most recent stamped messages whose echo can still be matched; must be a power of two
+        private static final int WINDOW = 1024;
+        private static final byte KIND_COMMAND = 0;
+        private static final byte KIND_HEARTBEAT = 1;
+
+        private final Random random;
+        private final ByteBuffer inbound;
+        private final ByteBuffer outbound;
+        private final long[] sentAt;
+        private final int[] stamps;
+        private final byte[] kinds;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean failed;
+        private boolean running;
+        private boolean binaryActive;
+        private boolean stampsActive;
+        private long connectStart;
+        private long nextCommand;
+        private long lastWrite;
+        private int step;
+        private int sequence;
+        private int angle;
+        private Throttle throttle;
+
+        Session(Random random) {
+            this.random = random;
+            inbound = ByteBuffer.allocate(4096);
+            outbound = ByteBuffer.allocate(4096);
+            sentAt = new long[WINDOW];
+            stamps = new int[WINDOW];
+            kinds = new byte[WINDOW];
+            angle = 90;
+            throttle = Throttle.NEUTRAL;
+        }
+
+        void connect(Selector selector) throws IOException {
+            connectStart = System.nanoTime();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(address);
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                sendHandshake();
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                sendHandshake();
+            }
+        }
+
+        private void sendHandshake() throws IOException {
+            Protocol.putCommand(outbound, Protocol.HANDSHAKE);
+            flush();
+        }
+
+        void read() throws IOException {
+            if (channel.read(inbound) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            long now = System.nanoTime();
+            inbound.flip();
+            int start = inbound.position();
+            for (int i = start; i < inbound.limit(); i++) {
+                if (inbound.get(i) == '\n') {
+                    handleLine(start, i, now);
+                    start = i + 1;
+                }
+            }
+            inbound.position(start);
+            inbound.compact();
+        }
+
+        private void handleLine(int start, int end, long now) throws IOException {
+            if (matches(start, end, HANDSHAKE)) {
+                if (!running) {
+                    running = true;
+                    handshakes.record(now - connectStart);
+                    nextCommand = now;
+                }
+            } else if (matches(start, end, BINARY_HANDSHAKE)) {
+                if (binary && !binaryActive) {
+                    Protocol.putCommand(outbound, Protocol.BINARY_HANDSHAKE);
+                    binaryActive = true;
+                    flush();
+                }
+            } else if (matches(start, end, STAMPED_HANDSHAKE)) {
+                if (!stampsActive) {
+                    Protocol.putCommand(outbound, Protocol.STAMPED_HANDSHAKE);
+                    stampsActive = true;
+                    flush();
+                }
+            } else {
+                matchEcho(start, end, now);
+            }
+        }
+
+        /**
+         * Records the round-trip time of the message echoed by the given line, if it ends in the sequence number and
+         * timestamp of a message that was sent and not echoed before. Any other line is ignored.
+         */
+        private void matchEcho(int start, int end, long now) {
+            int split = lastSpace(start, end);
+            int previous = split < 0 ? -1 : lastSpace(start, split);
+            if (previous < 0) {
+                return;
+            }
+            long sequence = parseUnsigned(previous + 1, split);
+            long timestamp = parseUnsigned(split + 1, end);
+            if (sequence < 0 || timestamp < 0) {
+                return;
+            }
+            int slot = (int) sequence & (WINDOW - 1);
+            if (sentAt[slot] == 0 || stamps[slot] != (int) timestamp) {
+                return;
+            }
+            (kinds[slot] == KIND_HEARTBEAT ? heartbeats : commands).record(now - sentAt[slot]);
+            sentAt[slot] = 0;
+            received.incrementAndGet();
+        }
+
+        /**
+         * Returns the position of the last space between the given positions of the inbound buffer, or -1 if none.
+         */
+        private int lastSpace(int start, int end) {
+            for (int i = end - 1; i > start; i--) {
+                if (inbound.get(i) == ' ') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses the unsigned 32-bit decimal number between the given positions of the inbound buffer.
+         * @return The parsed number, or -1 if the bytes are not such a number.
+         */
+        private long parseUnsigned(int start, int end) {
+            if (end - start < 1 || end - start > 10) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                byte b = inbound.get(i);
+                if (b < '0' || b > '9') {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return value > 0xFFFFFFFFL ? -1 : value;
+        }
+
+        private boolean matches(int start, int end, byte[] message) {
+            if (end - start != message.length) {
+                return false;
+            }
+            for (int i = 0; i < message.length; i++) {
+                if (inbound.get(start + i) != message[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void tick(long now) throws IOException {
+            if (!running || failed) {
+                return;
+            }
+            if (pattern != Pattern.IDLE && now >= nextCommand) {
+                int count = pattern == Pattern.BURST ? burst : 1;
+                for (int i = 0; i < count && canSend(); i++) {
+                    putNextCommand(now);
+                }
+                // Skip missed slots instead of catching up with a burst
+                nextCommand = Math.max(nextCommand + intervalNanos, now);
+                flush();
+            } else if (now - lastWrite >= HEARTBEAT_NANOS && canSend()) {
+                int next = sequence++;
+                if (binaryActive) {
+                    Protocol.putFrame(outbound, Protocol.OP_HEARTBEAT, angle, throttle, next, micros(now));
+                } else if (stampsActive) {
+                    Protocol.putCommand(outbound, Protocol.HEARTBEAT, next, micros(now));
+                } else {
+                    Protocol.putCommand(outbound, Protocol.HEARTBEAT);
+                }
+                track(now, next, KIND_HEARTBEAT);
+                flush();
+            }
+        }
+
+        /**
+         * Returns whether another message fits in the outbound buffer.
+         */
+        private boolean canSend() {
+            return outbound.remaining() >= Protocol.MAX_COMMAND_SIZE;
+        }
+
+        private void putNextCommand(long now) {
+            boolean steer;
+            switch (pattern) {
+                case RANDOM:
+                    steer = random.nextBoolean();
+                    angle = random.nextInt(Protocol.MAX_STEER_ANGLE + 1);
+                    throttle = Throttle.values()[random.nextInt(3)];
+                    break;
+                default:
+                    steer = step % 10 != 9;
+                    int phase = step % 36;
+                    angle = (phase < 18 ? phase : 36 - phase) * 10;
+                    throttle = step / 10 % 2 == 0 ? Throttle.FORWARD : Throttle.NEUTRAL;
+                    break;
+            }
+            step++;
+            int next = sequence++;
+            if (binaryActive) {
+                Protocol.putFrame(outbound, steer ? Protocol.OP_STEER : Protocol.OP_THROTTLE, angle, throttle,
+                        next, micros(now));
+            } else if (stampsActive && steer) {
+                Protocol.putSteeringCommand(outbound, angle, next, micros(now));
+            } else if (stampsActive) {
+                Protocol.putThrottleCommand(outbound, throttle, next, micros(now));
+            } else if (steer) {
+                Protocol.putSteeringCommand(outbound, angle);
+            } else {
+                Protocol.putThrottleCommand(outbound, throttle);
+            }
+            track(now, next, KIND_COMMAND);
+        }
+
+        /**
+         * Counts a sent message and, if it was stamped, remembers when it was sent so that its echo can be matched.
+         */
+        private void track(long now, int next, byte kind) {
+            sent.incrementAndGet();
+            if (binaryActive || stampsActive) {
+                int slot = next & (WINDOW - 1);
+                sentAt[slot] = now;
+                stamps[slot] = micros(now);
+                kinds[slot] = kind;
+            }
+        }
+
+        private int micros(long nanos) {
+            return (int) (nanos / 1000);
+        }
+
+        void flush() throws IOException {
+            outbound.flip();
+            channel.write(outbound);
+            outbound.compact();
+            lastWrite = System.nanoTime();
+            int ops = outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void fail() {
+            if (!failed) {
+                failed = true;
+                failures.incrementAndGet();
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // The session is over either way
+            }
+        }
+    }
+}
@@ -1,53 +1,464 @@
+import controller.connection.transport.LoopbackTransport;
 import util.Protocol;
+import util.Scheduler;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class TestServer {
+public class TestServer implements LoopbackTransport.Server {
+    private static final int BACKLOG = 4096;
+    private static final int LOG_CAPACITY = 65536;
+
+    private final boolean offerBinary;
+    private final Mode mode;
+    private final boolean verbose;
+    private final ExecutorService executor;
+    private final BlockingQueue<String> log;
+    private final AtomicLong droppedLogLines;
+    private final AtomicInteger clients;
+    private volatile int telemetryRate;
+    private volatile boolean offerStamps;
+
+    /**
+     * How the server replies to the commands it receives after the handshake.
+     */
+    public enum Mode {
+        /** Echo every received command, like the cars do. */
+        ECHO,
+        /** Only echo heartbeats, acknowledging that the link is alive. */
+        ACK,
+        /** Only answer the handshake. */
+        SILENT
+    }
+
+    /**
+     * Creates a new TestServer that echoes every command and logs every received line.
+     * @param offerBinary True if the binary framing should be offered during the handshake, false to behave like an
+     *                    older car that only understands text commands.
+     */
+    public TestServer(boolean offerBinary) {
+        this(offerBinary, Mode.ECHO, true);
+    }
+
+    /**
+     * Creates a new TestServer.
+     * @param offerBinary True if the binary framing should be offered during the handshake, false to behave like an
+     *                    older car that only understands text commands.
+     * @param mode How the server replies to the commands it receives.
+     * @param verbose True if every received line should be logged, false to only log connection events.
+     */
+    public TestServer(boolean offerBinary, Mode mode, boolean verbose) {
+        this.offerBinary = offerBinary;
+        this.mode = mode;
+        this.verbose = verbose;
+        this.executor = newConnectionExecutor();
+        this.log = new ArrayBlockingQueue<>(LOG_CAPACITY);
+        this.droppedLogLines = new AtomicLong();
+        this.clients = new AtomicInteger();
+        this.offerStamps = true;
+        startLogWriter();
+    }
+
+    /**
+     * Starts the server. Supported options:
+     * --text (behave like an older car without binary framing), --udp (also accept steering and throttle datagrams),
+     * --mode=echo|ack|silent (how commands are answered), --quiet (do not log every received line),
+     * --unstamped (behave like an older car that does not know the stamped text commands), --telemetry=HZ (report
+     * simulated telemetry at the given rate) and --port=N.
+     */
     public static void main(String... args) throws IOException {
-        final int portNumber = 65432;
-        System.out.println("Creating server socket on port " + portNumber);
-        ServerSocket serverSocket = new ServerSocket(portNumber);
+        int portNumber = 65432;
+        Mode mode = Mode.ECHO;
+        List<String> options = Arrays.asList(args);
+        for (String option : options) {
+            if (option.startsWith("--port=")) {
+                portNumber = Integer.parseInt(option.substring("--port=".length()));
+            } else if (option.startsWith("--mode=")) {
+                mode = Mode.valueOf(option.substring("--mode=".length()).toUpperCase());
+            }
+        }
+        // Passing --text makes this server behave like an older car that does not know the binary framing
+        TestServer server = new TestServer(!options.contains("--text"), mode, !options.contains("--quiet"));
+        server.setOfferStamps(!options.contains("--unstamped"));
+        for (String option : options) {
+            if (option.startsWith("--telemetry=")) {
+                server.setTelemetryRate(Integer.parseInt(option.substring("--telemetry=".length())));
+            }
+        }
+        server.log("Creating server socket on port " + portNumber);
+        ServerSocket serverSocket = new ServerSocket(portNumber, BACKLOG);
+        // Passing --udp additionally accepts steering and throttle datagrams on the same port
+        if (options.contains("--udp")) {
+            server.startDatagramReceiver(portNumber);
+        }
 
         while (true) {
             Socket socket = serverSocket.accept();
-            OutputStream os = socket.getOutputStream();
-            PrintWriter pw = new PrintWriter(os, true);
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            boolean stop = false;
-            boolean handShaken = false;
-            socket.setSoTimeout(1100);
-            String str;
+            server.executor.execute(() -> server.serve(socket));
+        }
+    }
+
+    /**
+     * Sets the rate at which every client that completed the handshake is sent simulated telemetry. Takes effect for
+     * the next client.
+     * @param rate The number of telemetry messages per second, or 0 to send none (the default).
+     */
+    public void setTelemetryRate(int rate) {
+        this.telemetryRate = rate;
+    }
+
+    /**
+     * Sets whether stamped text commands are offered during the handshake. Takes effect for the next client.
+     * @param offerStamps True to offer stamped text commands (the default), false to behave like an older car that
+     *                    only understands plain text commands.
+     */
+    public void setOfferStamps(boolean offerStamps) {
+        this.offerStamps = offerStamps;
+    }
+
+    /**
+     * Returns an executor running every task on a new virtual thread if the runtime supports them, and on a cached
+     * pool of daemon platform threads otherwise. The virtual thread factory is looked up reflectively so that this
+     * class still compiles and runs on runtimes before Java 21.
+     * @return The executor to serve client connections on.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queues the given line for the asynchronous log writer. Lines are dropped (and counted) rather than blocking the
+     * connection if the writer cannot keep up.
+     * @param line The line to log.
+     */
+    private void log(String line) {
+        if (!log.offer(line)) {
+            droppedLogLines.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts the thread writing queued log lines to System.out, flushing once per batch instead of once per line.
+     */
+    private void startLogWriter() {
+        Thread writer = new Thread(() -> {
+            PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false);
+            List<String> batch = new ArrayList<>();
+            while (true) {
+                try {
+                    batch.add(log.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                log.drainTo(batch);
+                for (String line : batch) {
+                    out.println(line);
+                }
+                long dropped = droppedLogLines.getAndSet(0);
+                if (dropped > 0) {
+                    out.println("Dropped " + dropped + " log lines");
+                }
+                out.flush();
+                batch.clear();
+            }
+        }, "TestServer-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Makes this server reachable in-process for clients using a LoopbackTransport to the given port. Every loopback
+     * connection is served on its own thread.
+     * @param portNumber The port number under which this server can be reached.
+     */
+    public void bindLoopback(int portNumber) {
+        LoopbackTransport.bind(portNumber, this);
+    }
+
+    @Override
+    public void accept(ReadableByteChannel input, WritableByteChannel output) {
+        executor.execute(() -> {
+            try {
+                serve(Channels.newInputStream(input), Channels.newOutputStream(output));
+            } catch (IOException e) {
+                log("Connection error: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Serves a single client socket until it disconnects, and closes it.
+     * @param socket The socket connected to the client.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(1100);
+            serve(s.getInputStream(), s.getOutputStream());
+        } catch (IOException e) {
+            log("Connection error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves a single client until it disconnects: validates the handshake, offers the stamped text commands and the
+     * binary framing, and answers every received command according to the mode of this server.
+     * @param in The stream of bytes sent by the client.
+     * @param os The stream of bytes to the client.
+     * @throws IOException If reading from or writing to the client failed.
+     */
+    private void serve(InputStream in, OutputStream os) throws IOException {
+        // Replies are flushed once no more input is buffered, so that a burst of commands costs a single write
+        PrintWriter pw = new PrintWriter(new BufferedOutputStream(os), false);
+
+        DataInputStream is = new DataInputStream(new BufferedInputStream(in));
+        byte[] frame = new byte[Protocol.FRAME_SIZE];
+        boolean stop = false;
+        boolean handShaken = false;
+        boolean binary = false;
+        boolean stamped = false;
+        boolean stamps = offerStamps;
+        SimulatedCar car = new SimulatedCar();
+        ScheduledFuture<?> telemetry = null;
+        String str;
+        log("Client connected (" + clients.incrementAndGet() + " connected)");
+        try {
             while (!stop) {
                 try {
-                    str = br.readLine();
+                    if (binary) {
+                        is.readFully(frame);
+                        str = Protocol.getCommandFromFrame(ByteBuffer.wrap(frame));
+                        if (str == null) {
+                            // Unlike the end of a text stream, an unknown frame does not end the connection
+                            log("Ignoring malformed frame with opcode " + frame[0]);
+                            if (is.available() == 0) {
+                                pw.flush();
+                            }
+                            continue;
+                        }
+                    } else {
+                        str = readLine(is);
+                    }
                     if (str != null) {
-                        System.out.println("Received " + str);
+                        if (verbose) {
+                            log("Received " + str);
+                        }
                         if (!handShaken) {
                             if (str.equals(Protocol.HANDSHAKE)) {
                                 handShaken = true;
-                                System.out.println("Sending handshake command");
+                                pw.println(str);
+                                if (stamps) {
+                                    pw.println(Protocol.STAMPED_HANDSHAKE);
+                                }
+                                if (offerBinary) {
+                                    pw.println(Protocol.BINARY_HANDSHAKE);
+                                }
+                                pw.flush();
+                                if (telemetryRate > 0) {
+                                    telemetry = startTelemetry(pw, car, telemetryRate);
+                                }
+                                continue;
                             } else {
-                                System.out.println("Received invalid command before handshake. Closing connection.");
+                                log("Received invalid command before handshake. Closing connection.");
                                 pw.println(Protocol.CLOSE_CONNECTION);
                                 break;
                             }
                         }
-                        pw.println(str);
+                        if (offerBinary && !binary && str.equals(Protocol.BINARY_HANDSHAKE)) {
+                            binary = true;
+                            continue;
+                        }
+                        if (stamps && !stamped && str.equals(Protocol.STAMPED_HANDSHAKE)) {
+                            stamped = true;
+                            continue;
+                        }
+                        try {
+                            car.received(str);
+                        } catch (NumberFormatException e) {
+                            log("Ignoring malformed command: " + str);
+                        }
+                        if (mode == Mode.ECHO || (mode == Mode.ACK && str.startsWith(Protocol.HEARTBEAT))) {
+                            pw.println(str);
+                        }
+                        if (is.available() == 0) {
+                            pw.flush();
+                        }
                     } else {
-                        System.out.println("Connection to client lost");
                         stop = true;
                     }
                 } catch (SocketTimeoutException e) {
-                    System.out.println("Connection to client lost");
+                    stop = true;
+                } catch (EOFException e) {
                     stop = true;
                 }
             }
+        } finally {
+            // Also on a connection reset, so that the telemetry stops and the client count stays right
+            if (telemetry != null) {
+                telemetry.cancel(false);
+            }
+            log("Connection to client lost (" + clients.decrementAndGet() + " connected)");
             pw.close();
-            socket.close();
         }
     }
+
+    /**
+     * Starts sending the telemetry of the given simulated car to a client at a fixed rate, on the shared scheduler.
+     * @param pw The writer to the client; PrintWriter serialises its writes, so replies and telemetry do not
+     *           interleave.
+     * @param car The simulated car to report the telemetry of.
+     * @param rate The number of telemetry messages per second.
+     * @return The scheduled telemetry, to be cancelled once the client disconnects.
+     */
+    private static ScheduledFuture<?> startTelemetry(PrintWriter pw, SimulatedCar car, int rate) {
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        return Scheduler.getInstance().getExecutor().scheduleAtFixedRate(() -> {
+            pw.println(car.nextTelemetry());
+            pw.flush();
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A crude model of a car for the simulated telemetry: the speed follows the last throttle command, the heading
+     * turns while moving and steering, and the battery drains slowly.
+     */
+    private static class SimulatedCar {
+        private static final int MAX_SPEED = 2000;
+        private static final int FULL_BATTERY = 8400;
+        private static final int EMPTY_BATTERY = 6000;
+
+        private final long started = System.nanoTime();
+        private volatile int speed;
+        private volatile int steer = 90;
+        private int battery = FULL_BATTERY;
+        private int heading;
+
+        /**
+         * Updates the simulated state from a command received from the client.
+         * @param command The received command, such as "THROTTLE FORWARD 50 12 3456".
+         * @throws NumberFormatException If the angle or power of the command is not a number.
+         */
+        void received(String command) {
+            String[] parts = command.split(" ");
+            if (parts[0].equals("STEER") && parts.length >= 2) {
+                steer = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("THROTTLE") && parts.length >= 2) {
+                // The power is only present if the command has an odd number of parts: with or without the stamp
+                int power = parts.length == 3 || parts.length == 5 ? Integer.parseInt(parts[2])
+                        : Protocol.MAX_POWER;
+                int sign = parts[1].equals("FORWARD") ? 1 : parts[1].equals("REVERSE") ? -1 : 0;
+                speed = sign * MAX_SPEED * power / Protocol.MAX_POWER;
+            }
+        }
+
+        /**
+         * Advances the simulation by one sample and returns it as a telemetry message.
+         * @return The telemetry message to send to the client.
+         */
+        String nextTelemetry() {
+            if (speed != 0) {
+                heading = Math.floorMod(heading + (steer - 90) / 10 * Integer.signum(speed), 3600);
+                battery = Math.max(EMPTY_BATTERY, battery - 1);
+            }
+            long timestamp = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+            return Protocol.getTelemetryCommand(timestamp, speed, battery, heading);
+        }
+    }
+
+    /**
+     * Starts a thread receiving steering and throttle datagrams on the given port. Datagrams arriving with an older
+     * sequence number than the newest one received from the same client are dropped.
+     * @param portNumber The UDP port to listen on.
+     * @throws IOException If the datagram channel could not be opened.
+     */
+    private void startDatagramReceiver(int portNumber) throws IOException {
+        log("Creating datagram channel on port " + portNumber);
+        DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(portNumber));
+        Thread receiver = new Thread(() -> {
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_SIZE);
+            Map<SocketAddress, Integer> lastSequence = new HashMap<>();
+            while (true) {
+                try {
+                    frame.clear();
+                    SocketAddress client = channel.receive(frame);
+                    if (frame.position() != Protocol.FRAME_SIZE) {
+                        log("Received malformed datagram from " + client);
+                        continue;
+                    }
+                    int sequence = frame.getInt(4);
+                    Integer last = lastSequence.get(client);
+                    if (last != null && !Protocol.isNewerSequence(sequence, last)) {
+                        log("Dropped out-of-order datagram " + sequence + " from " + client);
+                        continue;
+                    }
+                    lastSequence.put(client, sequence);
+                    frame.flip();
+                    if (verbose) {
+                        log("Received datagram " + Protocol.getCommandFromFrame(frame));
+                    }
+                } catch (IOException e) {
+                    log("Datagram channel closed");
+                    break;
+                }
+            }
+        });
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Reads a newline-terminated line of ASCII text from the given stream without reading ahead, so that the stream
+     * can switch to binary frames right after the line.
+     * @param is The stream to read from.
+     * @return The line without its line terminator, or null if the end of the stream was reached.
+     * @throws IOException If reading from the stream failed.
+     */
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII.name());
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII.name());
+    }
 }
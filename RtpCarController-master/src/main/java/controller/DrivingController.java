@@ -24,4 +24,21 @@ public enum DrivingController {
     public void steer(Steer angle) {
         car.steer(angle);
     }
+
+    /**
+     * Throttles the car in the given direction with the given power, for proportional input devices.
+     * @param dir The direction to throttle in.
+     * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     */
+    public void throttle(Throttle dir, int power) {
+        car.throttle(dir, power);
+    }
+
+    /**
+     * Steers the car to the given angle, for proportional input devices.
+     * @param angle The steering angle in degrees, between 0 (left) and Protocol.MAX_STEER_ANGLE (right).
+     */
+    public void steer(int angle) {
+        car.steer(angle);
+    }
 }
@@ -0,0 +1,78 @@
+package controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples the state of the input devices at a fixed rate on a thread of its own, so that the commands sent to the car
+ * follow a predictable cadence regardless of key auto-repeat or a busy UI thread. Input handlers only record the
+ * state of the devices; every tick, the sampling task turns the latest state into at most one steering and one
+ * throttle update. If a tick is missed (for example because of a GC pause), it is skipped rather than caught up on.
+ */
+public class InputSampler implements Runnable {
+    private final Runnable sample;
+    private volatile long period;
+    private volatile Thread thread;
+
+    /**
+     * Creates a new InputSampler, which is not yet started.
+     * @param sample The task reading the state of the input devices and updating the car accordingly.
+     * @param rate The number of samples per second.
+     */
+    public InputSampler(Runnable sample, int rate) {
+        this.sample = sample;
+        setRate(rate);
+    }
+
+    /**
+     * Sets the number of samples per second. Takes effect after the next sample.
+     * @param rate The number of samples per second, such as 100.
+     */
+    public void setRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive: " + rate);
+        }
+        this.period = TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    /**
+     * Starts sampling on a new daemon thread, unless sampling was already started.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "InputSampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops sampling.
+     */
+    public synchronized void stop() {
+        Thread current = thread;
+        thread = null;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        long next = System.nanoTime();
+        while (thread == self) {
+            sample.run();
+            long now = System.nanoTime();
+            next += period;
+            if (next - now <= 0) {
+                // Skip the ticks that were missed instead of sampling several times in a row
+                next = now + period;
+            }
+            long remaining;
+            while (thread == self && (remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+    }
+}
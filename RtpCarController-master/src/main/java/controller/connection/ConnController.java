@@ -1,34 +1,67 @@
 package controller.connection;
 
+import controller.connection.transport.SocketTransport;
+import controller.connection.transport.Transport;
+import model.CarListener;
+import model.CarState;
 import model.Throttle;
 import exception.NetworkConnectionException;
 import model.Car;
+import util.LatencyHistogram;
 import util.Protocol;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public enum ConnController implements Observer {
+public enum ConnController implements CarListener {
     INSTANCE;
 
+    private static final Logger LOGGER = Logger.getLogger(ConnController.class.getName());
+    private static final long DEFAULT_LIVENESS_TIMEOUT = 750;
+    private static final long MIN_HEARTBEAT_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+
     private Car car;
-    private Socket socket;
-    private ConnInputController inputController;
-    private ConnOutputController outputController;
-    private Timer heartbeatTimer;
+    private Supplier<Transport> transportFactory;
+    private volatile Transport transport;
+    private volatile ConnInputController inputController;
+    private volatile ConnOutputController outputController;
+    private InetSocketAddress address;
+    private final RttTracker rtt;
+    private final ConnMetrics metrics;
+    private final Reconnector reconnector;
+    private final LivenessWatchdog watchdog;
+    private final InputGovernor governor;
+    private volatile SessionRecorder recorder;
+    private long handshakeStarted;
+    private volatile long heartbeatPeriod;
 
-    private boolean active;
-    private double steer;
-    private Throttle throttle;
+    private volatile boolean active;
+    private boolean binaryEnabled;
+    private boolean binaryNegotiated;
+    private boolean stampsNegotiated;
+    private volatile boolean autoReconnect;
+    private volatile boolean tcpNoDelay;
+    private boolean resuming;
 
     private ConnController() {
         active = false;
+        binaryEnabled = true;
+        autoReconnect = true;
+        tcpNoDelay = true;
+        transportFactory = SocketTransport::new;
+        rtt = new RttTracker();
+        metrics = new ConnMetrics(rtt.getHistogram());
+        metrics.register();
+        reconnector = new Reconnector(this);
+        watchdog = new LivenessWatchdog(this, DEFAULT_LIVENESS_TIMEOUT);
+        governor = new InputGovernor();
+        heartbeatPeriod = TimeUnit.MILLISECONDS.toNanos(Protocol.HEARTBEAT_PERIOD);
     }
 
     public static ConnController getInstance() {
@@ -43,6 +76,157 @@ public enum ConnController implements Observer {
         return active;
     }
 
+    /**
+     * Sets whether the binary framing may be used if the remote car offers it during the handshake. Takes effect on
+     * the next connection.
+     * @param binaryEnabled True if the binary framing may be negotiated, false to always send text commands.
+     */
+    public void setBinaryEnabled(boolean binaryEnabled) {
+        this.binaryEnabled = binaryEnabled;
+    }
+
+    /**
+     * Sets whether a connection that was lost (rather than closed by the user) is re-established automatically. After
+     * reconnecting, the last known steering and throttle state of the car is sent again.
+     * @param autoReconnect True to reconnect automatically (the default), false to stay disconnected.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        if (!autoReconnect) {
+            reconnector.cancel();
+        }
+    }
+
+    /**
+     * Sets the time after which the link is declared dead if nothing was received from the car. The car is then
+     * neutralised and, if enabled, the connection is re-established. The deadline only applies once the car echoed a
+     * message on the connection, since a car that does not echo cannot show that the link is alive.
+     * @param timeout The deadline in milliseconds (750 by default), or 0 to never declare the link dead.
+     */
+    public void setLivenessTimeout(long timeout) {
+        watchdog.setTimeout(timeout);
+    }
+
+    /**
+     * Sets the longest time the link may be idle before a heartbeat is sent. Any command sent to the car postpones the
+     * next heartbeat, as long as something is received from the car within the period as well; otherwise a heartbeat
+     * is sent anyway, so that a car that only echoes heartbeats keeps the liveness watchdog satisfied.
+     * @param period The heartbeat period in milliseconds (Protocol.HEARTBEAT_PERIOD by default).
+     */
+    public void setHeartbeatPeriod(long period) {
+        heartbeatPeriod = TimeUnit.MILLISECONDS.toNanos(period);
+    }
+
+    /**
+     * Returns the current heartbeat period. This is the configured period, shortened when the round-trip time is so
+     * long that the echo of a heartbeat would otherwise not arrive well within the liveness deadline.
+     * @return The current heartbeat period in nanoseconds.
+     */
+    long getHeartbeatPeriod() {
+        long timeout = watchdog.getTimeout();
+        if (timeout <= 0) {
+            return heartbeatPeriod;
+        }
+        // Leave room for the round trip of the heartbeat and its echo, and as much again as margin
+        long period = timeout - 2 * rtt.getSmoothed() - Math.max(2 * rtt.getSmoothed(), timeout / 4);
+        return Math.max(MIN_HEARTBEAT_PERIOD, Math.min(heartbeatPeriod, period));
+    }
+
+    /**
+     * Returns true if a lost connection is currently being re-established.
+     * @return True if the connection is currently being re-established.
+     */
+    public boolean isReconnecting() {
+        return reconnector.isReconnecting();
+    }
+
+    /**
+     * Sets the factory creating the transport for each new connection, such as SocketTransport (TCP, the default),
+     * DatagramTransport (steering and throttle over UDP), ChannelTransport (NIO) or LoopbackTransport (in-process).
+     * Takes effect on the next connection.
+     * @param transportFactory The factory creating a new, unconnected transport.
+     */
+    public void setTransportFactory(Supplier<Transport> transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Sets whether writes on the reliable stream are sent right away (TCP_NODELAY). The output controller already
+     * gathers every command of a send cycle into a single write, so holding writes back (Nagle's algorithm) only adds
+     * latency; it may be enabled to reduce the packet rate on congested links. Takes effect on the next connection.
+     * @param tcpNoDelay True to send every write right away (the default), false to let TCP coalesce small writes.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Returns true if commands on the current connection are sent using the binary framing.
+     * @return True if the binary framing was negotiated for the current connection.
+     */
+    public boolean isBinaryNegotiated() {
+        return binaryNegotiated;
+    }
+
+    /**
+     * Returns the histogram of the round-trip times measured from the echoes of heartbeats and commands, over every
+     * connection made so far.
+     * @return The round-trip time histogram, in nanoseconds.
+     */
+    public LatencyHistogram getRttHistogram() {
+        return rtt.getHistogram();
+    }
+
+    /**
+     * Returns the exponentially smoothed round-trip time to the car.
+     * @return The smoothed round-trip time in nanoseconds, or 0 if none was measured yet.
+     */
+    public long getSmoothedRtt() {
+        return rtt.getSmoothed();
+    }
+
+    /**
+     * Returns the runtime metrics of the connection to the car, which are also registered as a JMX MBean.
+     * @return The connection metrics.
+     */
+    public ConnMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the governor limiting the steering and throttle commands sent to the car, which can be configured for
+     * the input device in use.
+     * @return The input governor of the connection.
+     */
+    public InputGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Sets the recorder to record every message sent to and received from the car in, starting with the next message.
+     * The recorder stays owned by the caller, which has to close it once it is no longer used.
+     * @param recorder The recorder to record the session in, or null to stop recording.
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the recorder the messages sent to and received from the car are recorded in.
+     * @return The session recorder, or null if the session is not recorded.
+     */
+    SessionRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Returns the tracker matching echoes to the commands sent to the car.
+     * @return The round-trip time tracker.
+     */
+    RttTracker getRttTracker() {
+        return rtt;
+    }
+
     /**
      * Registers a Car to this ConnController so that this controller is informed when the state of the car
      * changes.
@@ -50,7 +234,7 @@ public enum ConnController implements Observer {
      */
     public void registerCar(Car car) {
         this.car = car;
-        this.car.addObserver(this);
+        this.car.addListener(this);
     }
 
     /**
@@ -87,58 +271,201 @@ public enum ConnController implements Observer {
     }
 
     public void connect(String ipAddress, String port) throws NetworkConnectionException {
+        reconnector.cancel();
+        InetAddress serverAddress;
         try {
-            InetAddress serverAddress = InetAddress.getByName(ipAddress);
-            socket = new Socket(serverAddress, Integer.parseInt(port));
-//            socket.setSoTimeout(Protocol.HEARTBEAT_PERIOD + 500);
-            initialiseHandlers();
-            sendHandshake();
+            serverAddress = InetAddress.getByName(ipAddress);
         } catch (UnknownHostException e) {
             throw new NetworkConnectionException("Exception while trying to get host", e);
-        } catch (SocketException e) {
-            throw new NetworkConnectionException("Exception while trying to set the socket timeout duration", e);
+        }
+        // The resolved address is kept, so that reconnecting does not depend on (or wait for) name resolution
+        address = new InetSocketAddress(serverAddress, Integer.parseInt(port));
+        open(false);
+    }
+
+    /**
+     * Connects to the address of the previous connection again, and resumes the previous session once the car has
+     * answered the handshake: the car is not reset, but its last known state is sent again.
+     * @throws NetworkConnectionException If the connection could not be set up.
+     */
+    void reconnect() throws NetworkConnectionException {
+        open(true);
+    }
+
+    /**
+     * Sets up a new connection to the cached address and sends the handshake.
+     * @param resume True to resume the previous session once the handshake succeeds, false to start a new one.
+     * @throws NetworkConnectionException If the connection could not be set up.
+     */
+    private void open(boolean resume) throws NetworkConnectionException {
+        // Connecting may block for a long time if the car is unreachable, so it is done without holding the lock that
+        // disconnect() needs
+        Transport next = transportFactory.get();
+        next.setTcpNoDelay(tcpNoDelay);
+        try {
+            next.connect(address);
         } catch (IOException e) {
-            throw new NetworkConnectionException("Exception while trying to set up a socket connection and streams", e);
+            throw new NetworkConnectionException("Exception while trying to set up a connection to the car", e);
+        }
+        synchronized (this) {
+            if (resume && !reconnector.isReconnecting()) {
+                // The reconnect was cancelled while connecting
+                try {
+                    next.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error while closing a cancelled connection to the car", e);
+                }
+                return;
+            }
+            closeHandlers();
+            transport = next;
+            metrics.connected(resume);
+            resuming = resume;
+            binaryNegotiated = false;
+            stampsNegotiated = false;
+            initialiseHandlers();
+            handshakeStarted = System.nanoTime();
+            sendHandshake();
         }
     }
 
     /**
      * Initialises the handlers handling the in- and output streams from/to the car.
-     * @throws IOException If something went wrong while trying to set up the in- and output handlers.
      */
-    private void initialiseHandlers() throws IOException {
-        inputController = new ConnInputController(this,
-                new BufferedReader(new InputStreamReader(socket.getInputStream())));
-        outputController = new ConnOutputController(this,
-                new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+    private void initialiseHandlers() {
+        inputController = new ConnInputController(this, transport.getInbound());
+        outputController = new ConnOutputController(this, transport);
     }
 
     /**
-     * Sets the Car to an active state and starts the heartbeat service.
+     * Sets the Car to an active state and starts the sending service. The car echoes every handshake it receives, so
+     * any echo after the first one of a connection is ignored.
      */
-    void setConnectionValidated() {
+    synchronized void setConnectionValidated() {
+        if (active) {
+            return;
+        }
+        metrics.handshakeCompleted(System.nanoTime() - handshakeStarted);
         active = true;
         car.setActive(true);
-        car.reset();
-        startHeartbeat();
+        startSender();
+        watchdog.start();
+        governor.reset();
+        if (!resuming) {
+            car.reset();
+        }
+        reconnector.handshakeCompleted();
+        // The car may already have been neutral, in which case resetting it did not produce a change to send. When
+        // resuming a session, this replays the last known state. The governor suppresses values already queued.
+        int steer = governor.filterSteer(car.getSteer());
+        if (steer != InputGovernor.SUPPRESSED) {
+            outputController.steer(steer);
+        }
+        int power = governor.filterPower(car.getPower(), false);
+        if (power != InputGovernor.SUPPRESSED) {
+            outputController.throttle(car.getThrottle(), power);
+        }
     }
 
     /**
-     * Sets the Car to an inactive state, stops the heartbeat service and closes the socket connection if not yet closed.
+     * Switches the outgoing commands to the binary framing if it is enabled and was not negotiated yet, in response to
+     * the remote car offering it.
+     */
+    void setBinaryOffered() {
+        if (binaryEnabled && !binaryNegotiated) {
+            binaryNegotiated = true;
+            outputController.acceptBinary();
+        }
+    }
+
+    /**
+     * Switches the outgoing text commands to carrying a sequence number and timestamp if that was not negotiated yet,
+     * in response to the remote car offering it. Round-trip times are only measured on connections that negotiated
+     * stamping or the binary framing.
+     */
+    void setStampOffered() {
+        if (!stampsNegotiated) {
+            stampsNegotiated = true;
+            outputController.acceptStamps();
+        }
+    }
+
+    /**
+     * Sets the Car to an inactive state, stops the sending service and closes the transport if not yet closed.
      */
     public void disconnect() {
-        System.out.println("Deactivating connection");
+        disconnect(DisconnectCause.USER);
+    }
+
+    /**
+     * Records that bytes were received from the car.
+     * @param count The number of bytes received.
+     */
+    void received(int count) {
+        watchdog.received(System.nanoTime());
+        metrics.bytesReceived(count);
+    }
+
+    /**
+     * Returns the time at which bytes were last received from the car.
+     * @return The System.nanoTime() of the last receive on the current connection.
+     */
+    long getLastReceived() {
+        return watchdog.getLastReceived();
+    }
+
+    /**
+     * Records that the car echoed a message, which shows that the liveness watchdog can rely on its echoes.
+     */
+    void echoed() {
+        watchdog.echoed();
+    }
+
+    /**
+     * Handles the link being declared dead by the liveness watchdog: the connection is dropped (and re-established if
+     * enabled) and the car is neutralised, so that it is not resumed with its last throttle.
+     */
+    void setLinkLost() {
+        car.reset();
+        disconnect(DisconnectCause.LIVENESS_TIMEOUT);
+    }
+
+    /**
+     * Sets the Car to an inactive state, stops the sending service and closes the transport if not yet closed. Unless
+     * the user or the car closed it, an active connection is re-established automatically if enabled.
+     * @param cause The reason the connection ended, as reported in the metrics.
+     */
+    synchronized void disconnect(DisconnectCause cause) {
+        LOGGER.info("Deactivating connection (" + cause + ")");
+        if (cause == DisconnectCause.USER) {
+            reconnector.cancel();
+        }
         if (active) {
             active = false;
+            watchdog.stop();
+            metrics.disconnected(cause);
             car.setActive(false);
-            stopHeartbeat();
-            if (!socket.isClosed()) {
-                try {
-                    outputController.close();
-                    inputController.close();
-                } catch (IOException ex) {
-                    // TODO: Implement exception handling for ConnController disconnect mechanism.
-                }
+            stopSender();
+            if (cause != DisconnectCause.USER && cause != DisconnectCause.REMOTE_CLOSE && autoReconnect) {
+                reconnector.start();
+            }
+        }
+        closeHandlers();
+    }
+
+    /**
+     * Closes the handlers and transport of the current connection, if it is still open. A failure to close the
+     * transport is only logged, since the connection is given up either way.
+     */
+    private void closeHandlers() {
+        if (transport != null && transport.isOpen()) {
+            // The input controller is stopped before the transport is closed, so that the read failing because of the
+            // close is not reported as a lost connection, which might tear down the next connection
+            inputController.close();
+            try {
+                outputController.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error while closing the connection to the car", e);
             }
         }
     }
@@ -151,36 +478,46 @@ public enum ConnController implements Observer {
     }
 
     /**
-     * Starts the heartbeat-part of the protocol (timed heartbeat messages are sent to the RC Car).
+     * Starts the sending thread, which writes commands to the RC Car as soon as they are produced and sends heartbeat
+     * messages whenever the link has been idle for a heartbeat period.
      */
-    private void startHeartbeat() {
-        heartbeatTimer = new Timer();
-        heartbeatTimer.scheduleAtFixedRate(outputController, 0, Protocol.HEARTBEAT_PERIOD);
+    private void startSender() {
+        outputController.start();
     }
 
     /**
-     * Stops the heartbeat-part of the protocol (timed heartbeat messages are no longer sent to the RC car).
+     * Stops the sending thread (no more commands or heartbeat messages are sent to the RC car).
      */
-    private void stopHeartbeat() {
-        heartbeatTimer.cancel();
+    private void stopSender() {
+        outputController.shutdown();
     }
 
     @Override
-    public void update(Observable o, Object arg) {
-        int nSteer = car.getSteer();
-        Throttle nThrottle = car.getThrottle();
-        try {
-            if (!active) {
-                sendHandshake();
-            } else if (steer != nSteer) {
-                outputController.steer(nSteer);
-                steer = nSteer;
-            } else if (throttle != nThrottle) {
-                outputController.throttle(car.getThrottle());
-                throttle = nThrottle;
+    public void carChanged(Car car, long previous, long current) {
+        if (!CarState.isDrivingChanged(previous, current) || outputController == null) {
+            return;
+        }
+        if (!active) {
+            // The handshake was sent when the connection was opened; the state is sent once it is validated
+            return;
+        }
+        // Steering and throttle are compared separately, so a throttle change coalesced with a steering change is not
+        // lost
+        int nSteer = CarState.getSteer(current);
+        if (nSteer != CarState.getSteer(previous)) {
+            int steer = governor.filterSteer(nSteer);
+            if (steer != InputGovernor.SUPPRESSED) {
+                outputController.steer(steer);
+            }
+        }
+        Throttle nThrottle = CarState.getThrottle(current);
+        int nPower = CarState.getPower(current);
+        boolean directionChanged = nThrottle != CarState.getThrottle(previous);
+        if (nThrottle != null && (directionChanged || nPower != CarState.getPower(previous))) {
+            int power = governor.filterPower(nPower, directionChanged);
+            if (power != InputGovernor.SUPPRESSED) {
+                outputController.throttle(nThrottle, power);
             }
-        } catch (NetworkConnectionException ex) {
-            // TODO: Implement exception handling for ConnController update mechanism.
         }
     }
 }
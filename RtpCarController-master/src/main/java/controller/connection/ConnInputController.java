@@ -1,62 +1,114 @@
 package controller.connection;
 
-import util.Protocol;
-
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Class handling the inputs received from the remote car.
  */
-class ConnInputController extends Thread {
+class ConnInputController extends Thread implements InboundFramer.Handler {
     private final ConnController connection;
-    private final BufferedReader reader;
-    private boolean active;
+    private final ReadableByteChannel channel;
+    private final InboundFramer framer;
+    private volatile boolean active;
 
-    public ConnInputController(ConnController connection, BufferedReader reader) {
+    public ConnInputController(ConnController connection, ReadableByteChannel channel) {
         this.connection = connection;
-        this.reader = reader;
+        this.channel = channel;
+        this.framer = new InboundFramer(this);
         this.active = true;
+        setName("ConnInputController");
         this.start();
     }
 
-    private void parseInput(String input) {
-        if (input == null || input.split(" ").length > 2) {
-            return;
+    @Override
+    public void onHandshake() {
+        record(SessionRecorder.RECEIVED_HANDSHAKE, 0, 0);
+        connection.setConnectionValidated();
+    }
+
+    @Override
+    public void onBinaryOffer() {
+        record(SessionRecorder.RECEIVED_BINARY_OFFER, 0, 0);
+        connection.setBinaryOffered();
+    }
+
+    @Override
+    public void onStampOffer() {
+        record(SessionRecorder.RECEIVED_STAMP_OFFER, 0, 0);
+        connection.setStampOffered();
+    }
+
+    @Override
+    public void onEcho(int sequence, int timestamp) {
+        connection.echoed();
+        connection.getRttTracker().echoed(sequence, timestamp, System.nanoTime());
+        record(SessionRecorder.RECEIVED_ECHO, sequence, timestamp);
+    }
+
+    @Override
+    public void onTelemetry(long timestamp, int speed, int battery, int heading) {
+        connection.getCar().getTelemetry().add(timestamp, speed, battery, heading);
+        SessionRecorder recorder = connection.getRecorder();
+        if (recorder != null) {
+            recorder.receivedTelemetry(timestamp, speed, battery, heading);
         }
+    }
+
+    @Override
+    public void onClose() {
+        record(SessionRecorder.RECEIVED_CLOSE, 0, 0);
+        disconnect(DisconnectCause.REMOTE_CLOSE);
+    }
 
-        switch (input) {
-            case Protocol.HANDSHAKE:
-                connection.setConnectionValidated();
-                break;
-            case Protocol.CLOSE_CONNECTION:
-                active = false;
-                connection.disconnect();
-                break;
-            default:
-                break;
+    /**
+     * Records a message received from the car in the session recording, if one is being made.
+     * @param type The type of the message (one of the SessionRecorder.RECEIVED_ constants).
+     * @param sequence The sequence number carried by an echo, or 0.
+     * @param timestamp The timestamp carried by an echo, or 0.
+     */
+    private void record(byte type, int sequence, int timestamp) {
+        SessionRecorder recorder = connection.getRecorder();
+        if (recorder != null) {
+            recorder.received(type, sequence, timestamp);
         }
     }
 
     /**
-     * Closes this ConnInputController's associated InputStream.
+     * Closes this ConnInputController's associated inbound channel.
      */
     void close() {
+        active = false;
         try {
-            reader.close();
+            channel.close();
         } catch (IOException e) {}
     }
 
+    /**
+     * Reports that the connection ended, unless this controller was closed before, in which case the connection may
+     * already have been replaced by a new one.
+     * @param cause The reason the connection ended.
+     */
+    private void disconnect(DisconnectCause cause) {
+        if (active) {
+            active = false;
+            connection.disconnect(cause);
+        }
+    }
+
     @Override
     public void run() {
-        String input;
         while (active) {
             try {
-                input = reader.readLine();
-                parseInput(input);
+                int read = framer.read(channel);
+                if (read < 0) {
+                    // The car closed the connection
+                    disconnect(DisconnectCause.END_OF_STREAM);
+                } else {
+                    connection.received(read);
+                }
             } catch (IOException e) {
-                connection.disconnect();
-                break;
+                disconnect(DisconnectCause.READ_ERROR);
             }
         }
     }
@@ -0,0 +1,299 @@
+package controller.connection;
+
+import util.LatencyHistogram;
+import util.Scheduler;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runtime metrics of the connection to the car, exposed as the JMX MBean "controller.connection:type=ConnMetrics" and
+ * optionally dumped as text at a fixed period. Counters are LongAdders, which are striped across threads, so that
+ * updating them on the send path costs about as much as an unshared increment.
+ */
+public class ConnMetrics implements ConnMetricsMBean {
+    private static final Logger LOGGER = Logger.getLogger(ConnMetrics.class.getName());
+    private static final String OBJECT_NAME = "controller.connection:type=ConnMetrics";
+    private static final DisconnectCause[] CAUSES = DisconnectCause.values();
+
+    private final LongAdder commandsEnqueued;
+    private final LongAdder commandsSent;
+    private final LongAdder commandsDropped;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder writes;
+    private final LongAdder heartbeatsSent;
+    private final LongAdder connects;
+    private final LongAdder reconnects;
+    private final LongAdder[] disconnects;
+    private final LatencyHistogram heartbeatJitter;
+    private final LatencyHistogram handshakes;
+    private final LatencyHistogram rtt;
+    private volatile long lastHandshake;
+    private volatile ConnOutputController.ConnOutputQueue queue;
+
+    /**
+     * Creates a new ConnMetrics.
+     * @param rtt The histogram of the round-trip times measured on the connection.
+     */
+    ConnMetrics(LatencyHistogram rtt) {
+        this.rtt = rtt;
+        commandsEnqueued = new LongAdder();
+        commandsSent = new LongAdder();
+        commandsDropped = new LongAdder();
+        bytesIn = new LongAdder();
+        bytesOut = new LongAdder();
+        writes = new LongAdder();
+        heartbeatsSent = new LongAdder();
+        connects = new LongAdder();
+        reconnects = new LongAdder();
+        disconnects = new LongAdder[CAUSES.length];
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+        heartbeatJitter = new LatencyHistogram();
+        handshakes = new LatencyHistogram();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, so that they can be inspected with tools like JConsole.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register connection metrics", e);
+        }
+    }
+
+    /**
+     * Starts printing these metrics to the given stream at a fixed period, on the shared scheduler thread.
+     * @param out The stream to print the metrics to.
+     * @param period The time between two dumps.
+     * @param unit The unit of the period.
+     * @return The scheduled dump, which can be cancelled to stop it.
+     */
+    public ScheduledFuture<?> startDump(PrintStream out, long period, TimeUnit unit) {
+        return Scheduler.getInstance().getExecutor().scheduleWithFixedDelay(() -> out.println(this), period, period,
+                unit);
+    }
+
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // RECORDING
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the output queue of the current connection, whose depth is reported by these metrics.
+     */
+    void watchQueue(ConnOutputController.ConnOutputQueue queue) {
+        this.queue = queue;
+    }
+
+    void commandEnqueued(boolean replacedPending) {
+        commandsEnqueued.increment();
+        if (replacedPending) {
+            commandsDropped.increment();
+        }
+    }
+
+    void commandSent() {
+        commandsSent.increment();
+    }
+
+    void bytesReceived(int count) {
+        bytesIn.add(count);
+    }
+
+    void bytesSent(int count) {
+        bytesOut.add(count);
+    }
+
+    /**
+     * Records a single write of the given number of bytes to the reliable stream.
+     * @param count The number of bytes written.
+     */
+    void written(int count) {
+        writes.increment();
+        bytesOut.add(count);
+    }
+
+    /**
+     * Records a heartbeat, queued the given time after it was due.
+     * @param lateNanos The time between the end of the heartbeat period and queueing the heartbeat.
+     */
+    void heartbeatSent(long lateNanos) {
+        heartbeatsSent.increment();
+        heartbeatJitter.record(lateNanos);
+    }
+
+    void handshakeCompleted(long nanos) {
+        lastHandshake = nanos;
+        handshakes.record(nanos);
+    }
+
+    void connected(boolean reconnect) {
+        connects.increment();
+        if (reconnect) {
+            reconnects.increment();
+        }
+    }
+
+    void disconnected(DisconnectCause cause) {
+        disconnects[cause.ordinal()].increment();
+    }
+
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // MBEAN
+    // -----------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public long getCommandsEnqueued() {
+        return commandsEnqueued.sum();
+    }
+
+    @Override
+    public long getCommandsSent() {
+        return commandsSent.sum();
+    }
+
+    @Override
+    public long getCommandsDropped() {
+        return commandsDropped.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        ConnOutputController.ConnOutputQueue current = queue;
+        return current == null ? 0 : current.size();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getHeartbeatsSent() {
+        return heartbeatsSent.sum();
+    }
+
+    @Override
+    public double getHeartbeatJitterMeanMillis() {
+        return toMillis(heartbeatJitter.getMean());
+    }
+
+    @Override
+    public double getHeartbeatJitterMaxMillis() {
+        return toMillis(heartbeatJitter.getMax());
+    }
+
+    @Override
+    public double getLastHandshakeMillis() {
+        return toMillis(lastHandshake);
+    }
+
+    @Override
+    public double getRttMeanMillis() {
+        return toMillis(rtt.getMean());
+    }
+
+    @Override
+    public double getRttP99Millis() {
+        return toMillis(rtt.getPercentile(99));
+    }
+
+    @Override
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        long total = 0;
+        for (LongAdder count : disconnects) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public String getDisconnectCauses() {
+        StringBuilder causes = new StringBuilder();
+        for (DisconnectCause cause : CAUSES) {
+            if (causes.length() > 0) {
+                causes.append(' ');
+            }
+            causes.append(cause).append('=').append(disconnects[cause.ordinal()].sum());
+        }
+        return causes.toString();
+    }
+
+    @Override
+    public void reset() {
+        commandsEnqueued.reset();
+        commandsSent.reset();
+        commandsDropped.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        writes.reset();
+        heartbeatsSent.reset();
+        connects.reset();
+        reconnects.reset();
+        for (LongAdder count : disconnects) {
+            count.reset();
+        }
+        heartbeatJitter.reset();
+        handshakes.reset();
+        rtt.reset();
+        lastHandshake = 0;
+    }
+
+    /**
+     * Returns a multi-line text dump of every metric.
+     * @return The current metrics of the connection.
+     */
+    @Override
+    public String toString() {
+        return "commands: enqueued=" + getCommandsEnqueued() + " sent=" + getCommandsSent()
+                + " dropped=" + getCommandsDropped() + " queued=" + getQueueDepth() + '\n'
+                + "bytes: in=" + getBytesIn() + " out=" + getBytesOut() + " writes=" + getWrites() + '\n'
+                + "heartbeats: sent=" + getHeartbeatsSent() + " jitter " + heartbeatJitter + '\n'
+                + "handshake: " + handshakes + '\n'
+                + "rtt: " + rtt + '\n'
+                + "connections: connects=" + getConnects() + " reconnects=" + getReconnects()
+                + " disconnects=" + getDisconnects() + " (" + getDisconnectCauses() + ')';
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
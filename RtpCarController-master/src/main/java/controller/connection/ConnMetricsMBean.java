@@ -0,0 +1,54 @@
+package controller.connection;
+
+/**
+ * JMX management interface of ConnMetrics. Durations are reported in milliseconds.
+ */
+public interface ConnMetricsMBean {
+    long getCommandsEnqueued();
+
+    long getCommandsSent();
+
+    /**
+     * Returns the number of commands that were replaced by a newer command before they could be sent.
+     */
+    long getCommandsDropped();
+
+    int getQueueDepth();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * Returns the number of writes to the reliable stream. Every write carries all commands of one send cycle.
+     */
+    long getWrites();
+
+    long getHeartbeatsSent();
+
+    double getHeartbeatJitterMeanMillis();
+
+    double getHeartbeatJitterMaxMillis();
+
+    double getLastHandshakeMillis();
+
+    double getRttMeanMillis();
+
+    double getRttP99Millis();
+
+    long getConnects();
+
+    long getReconnects();
+
+    long getDisconnects();
+
+    /**
+     * Returns the number of disconnects per cause, formatted as "CAUSE=count" pairs.
+     */
+    String getDisconnectCauses();
+
+    /**
+     * Resets every counter and histogram.
+     */
+    void reset();
+}
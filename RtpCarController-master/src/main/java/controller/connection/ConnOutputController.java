@@ -1,70 +1,358 @@
 package controller.connection;
 
+import controller.connection.transport.Transport;
+import model.Steer;
 import model.Throttle;
 import exception.NetworkConnectionException;
 import util.Protocol;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Class handling the outputs from this client to the remote car.
+ * Class handling the outputs from this client to the remote car. Commands are written as soon as they are queued; a
+ * heartbeat is queued by a HeartbeatScheduler when nothing has been written or received for a heartbeat period. Every
+ * command that is pending when the sending thread wakes up is encoded into one buffer, which is written to the
+ * transport with a single write, so that a steering and throttle change issued together cost one system call and one
+ * segment. Commands are sent as newline-terminated text until the car and client have agreed on the binary framing. If
+ * the transport supports datagrams, steering and throttle commands are sent as sequenced binary datagrams instead,
+ * while the handshake, heartbeat and close messages stay on the reliable stream. Once the car accepted stamping (or the
+ * binary framing), heartbeats and commands carry a sequence number and timestamp, so that their echoes can be matched
+ * back to measure the round-trip time; cars that only know the plain text commands keep receiving them unstamped.
  */
-class ConnOutputController extends TimerTask {
+class ConnOutputController extends Thread {
+    private static final Throttle[] THROTTLES = Throttle.values();
+    // Largest number of bytes a single command takes in either format
+    private static final int MAX_ENCODED_SIZE = Math.max(Protocol.FRAME_SIZE, Protocol.MAX_COMMAND_SIZE);
+    // A send cycle holds at most one steering and one throttle command, so this only overflows if many control
+    // messages are queued at once, in which case the batch is written in several parts
+    private static final int BATCH_SIZE = 16 * MAX_ENCODED_SIZE;
+
     private final ConnController connection;
-    private final BufferedWriter writer;
+    private final Transport transport;
     private final ConnOutputQueue queue;
+    private final RttTracker rtt;
+    private final ConnMetrics metrics;
+    private final HeartbeatScheduler heartbeats;
+    private final InputGovernor governor;
+    private final AtomicBoolean heartbeatPending;
+    private final ByteBuffer buffer;
+    private final boolean datagrams;
+    private final ByteBuffer datagramBuffer;
+    private volatile boolean active;
+    private volatile long lastWrite;
+    private boolean binary;
+    private boolean stamped;
+    private int sequence;
+    private int steer;
+    private Throttle throttle;
+    private int power;
 
     /**
      * Creates a new ConnOutputController that handles the outgoing data to the car.
      * @param connection The controller handling the general connection to the car.
-     * @param writer The output stream writer to the car.
+     * @param transport The link to the car.
      */
-    ConnOutputController(ConnController connection, BufferedWriter writer) {
+    ConnOutputController(ConnController connection, Transport transport) {
         this.connection = connection;
-        this.writer = writer;
+        this.transport = transport;
+        this.datagrams = transport.supportsDatagrams();
+        this.datagramBuffer = datagrams ? ByteBuffer.allocateDirect(Protocol.FRAME_SIZE) : null;
         this.queue = new ConnOutputQueue();
+        this.rtt = connection.getRttTracker();
+        this.metrics = connection.getMetrics();
+        metrics.watchQueue(queue);
+        this.heartbeats = new HeartbeatScheduler(this, connection::getHeartbeatPeriod, connection::getLastReceived,
+                metrics);
+        this.heartbeatPending = new AtomicBoolean();
+        this.lastWrite = System.nanoTime();
+        this.buffer = ByteBuffer.allocate(BATCH_SIZE);
+        this.active = true;
+        this.steer = Protocol.getDegreesFromSteer(Steer.NEUTRAL);
+        this.throttle = Throttle.NEUTRAL;
+        this.power = Protocol.MAX_POWER;
+        this.governor = connection.getGovernor();
+        setName("ConnOutputController");
     }
 
     /**
-     * Sends the given String to the remote car.
-     * @param message The String to send to the remote car.
-     * @throws NetworkConnectionException If sending the message resulted in an error.
+     * Sends the commands that were encoded into the batch buffer to the remote car with a single write, and clears
+     * the buffer. Does nothing if the buffer is empty.
+     * @throws NetworkConnectionException If sending the commands resulted in an error.
      */
-    private void write(String message) throws NetworkConnectionException {
+    private synchronized void flushBuffer() throws NetworkConnectionException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
         try {
-            writer.write(message);
-            writer.newLine();
-            writer.flush();
+            int length = buffer.remaining();
+            transport.write(buffer);
+            lastWrite = System.nanoTime();
+            metrics.written(length);
         } catch (IOException e) {
             throw new NetworkConnectionException("Error while trying to write to the output stream", e);
+        } finally {
+            buffer.clear();
         }
     }
 
     /**
-     * Sends a handshake command to the remote car to establish whether the connection is valid.
+     * Makes sure another command fits into the batch buffer, writing the commands batched so far if it does not.
+     * @throws NetworkConnectionException If writing the batched commands resulted in an error.
+     */
+    private void reserve() throws NetworkConnectionException {
+        if (buffer.remaining() < MAX_ENCODED_SIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Adds the given control message to the batch as a newline-terminated line of text.
+     * @param message The control message to send to the remote car.
+     * @throws NetworkConnectionException If the batch was full and writing it resulted in an error.
+     */
+    private synchronized void write(String message) throws NetworkConnectionException {
+        reserve();
+        Protocol.putCommand(buffer, message);
+        record(SessionRecorder.getSentType(message), 0, 0);
+    }
+
+    /**
+     * Adds the given control message to the batch as a line of text stamped with a sequence number and timestamp.
+     * @param message The control message to send to the remote car.
+     * @throws NetworkConnectionException If the batch was full and writing it resulted in an error.
+     */
+    private synchronized void writeStamped(String message) throws NetworkConnectionException {
+        reserve();
+        long now = System.nanoTime();
+        int sequence = stamp(now);
+        int timestamp = RttTracker.toTimestamp(now);
+        Protocol.putCommand(buffer, message, sequence, timestamp);
+        record(SessionRecorder.getSentType(message), sequence, timestamp);
+    }
+
+    /**
+     * Adds a binary frame of the given type, carrying the current steering and throttle state, to the batch.
+     * @param opcode The type of the frame (one of the Protocol.OP_ constants).
+     * @throws NetworkConnectionException If the batch was full and writing it resulted in an error.
+     */
+    private synchronized void writeFrame(byte opcode) throws NetworkConnectionException {
+        reserve();
+        long now = System.nanoTime();
+        int sequence = stamp(now);
+        int timestamp = RttTracker.toTimestamp(now);
+        Protocol.putFrame(buffer, opcode, steer, throttle, power, sequence, timestamp);
+        record(opcode, sequence, timestamp);
+    }
+
+    /**
+     * Takes the next sequence number for a command sent over the stream or as a datagram, and records its send time so
+     * that its echo can be matched back.
+     * @param now The System.nanoTime() at which the command is stamped.
+     * @return The sequence number of the command.
+     */
+    private int stamp(long now) {
+        int next = sequence++;
+        rtt.sent(next, now);
+        return next;
+    }
+
+    /**
+     * Records a message sent to the car in the session recording, if one is being made, along with the current
+     * steering and throttle state.
+     * @param type The type of the message (one of the SessionRecorder.SENT_ constants).
+     * @param sequence The sequence number of the message, or 0 if it has none.
+     * @param timestamp The timestamp of the message in microseconds, or 0 if it has none.
+     */
+    private void record(byte type, int sequence, int timestamp) {
+        SessionRecorder recorder = connection.getRecorder();
+        if (recorder != null) {
+            recorder.sent(type, steer, throttle.ordinal(), power, sequence, timestamp);
+        }
+    }
+
+    /**
+     * Sends a binary frame of the given type, carrying the current steering and throttle state, to the remote car as a
+     * single datagram. The car drops datagrams that arrive with an older sequence number than one it already received.
+     * @param opcode The type of the frame (one of the Protocol.OP_ constants).
+     * @throws NetworkConnectionException If sending the datagram resulted in an error.
+     */
+    private void writeDatagram(byte opcode) throws NetworkConnectionException {
+        datagramBuffer.clear();
+        long now = System.nanoTime();
+        int next = stamp(now);
+        int timestamp = RttTracker.toTimestamp(now);
+        Protocol.putFrame(datagramBuffer, opcode, steer, throttle, power, next, timestamp);
+        datagramBuffer.flip();
+        record(opcode, next, timestamp);
+        try {
+            transport.sendDatagram(datagramBuffer);
+            metrics.bytesSent(Protocol.FRAME_SIZE);
+        } catch (IOException e) {
+            throw new NetworkConnectionException("Error while trying to send a datagram", e);
+        }
+    }
+
+    /**
+     * Adds a control message (handshake, heartbeat or close) to the batch in the currently negotiated format.
+     * @param message The control message to send.
+     * @throws NetworkConnectionException If sending the message resulted in an error.
+     */
+    private void sendControl(String message) throws NetworkConnectionException {
+        if (message.equals(Protocol.HEARTBEAT)) {
+            heartbeatPending.set(false);
+        }
+        if (message.equals(Protocol.BINARY_HANDSHAKE)) {
+            write(message);
+            binary = true;
+        } else if (message.equals(Protocol.STAMPED_HANDSHAKE)) {
+            write(message);
+            stamped = true;
+        } else if (binary) {
+            writeFrame(Protocol.getOpcode(message));
+        } else if (stamped && message.equals(Protocol.HEARTBEAT)) {
+            writeStamped(message);
+        } else {
+            write(message);
+        }
+    }
+
+    /**
+     * Adds a steering command for the given angle to the batch in the currently negotiated format, or sends it right
+     * away if it goes out as a datagram.
+     * @param angle The angle to steer towards.
+     * @throws NetworkConnectionException If sending the command resulted in an error.
+     */
+    private synchronized void sendSteer(int angle) throws NetworkConnectionException {
+        steer = angle;
+        metrics.commandSent();
+        if (datagrams) {
+            writeDatagram(Protocol.OP_STEER);
+        } else if (binary) {
+            writeFrame(Protocol.OP_STEER);
+        } else if (stamped) {
+            reserve();
+            long now = System.nanoTime();
+            int sequence = stamp(now);
+            int timestamp = RttTracker.toTimestamp(now);
+            Protocol.putSteeringCommand(buffer, angle, sequence, timestamp);
+            record(SessionRecorder.SENT_STEER, sequence, timestamp);
+        } else {
+            reserve();
+            Protocol.putSteeringCommand(buffer, angle);
+            record(SessionRecorder.SENT_STEER, 0, 0);
+        }
+    }
+
+    /**
+     * Adds a throttle command for the given direction and power to the batch in the currently negotiated format, or
+     * sends it right away if it goes out as a datagram.
+     * @param dir The direction to throttle in.
+     * @param power The throttle power as a percentage.
+     * @throws NetworkConnectionException If sending the command resulted in an error.
+     */
+    private synchronized void sendThrottle(Throttle dir, int power) throws NetworkConnectionException {
+        this.throttle = dir;
+        this.power = power;
+        metrics.commandSent();
+        if (datagrams) {
+            writeDatagram(Protocol.OP_THROTTLE);
+        } else if (binary) {
+            writeFrame(Protocol.OP_THROTTLE);
+        } else if (stamped) {
+            reserve();
+            long now = System.nanoTime();
+            int sequence = stamp(now);
+            int timestamp = RttTracker.toTimestamp(now);
+            Protocol.putThrottleCommand(buffer, dir, power, sequence, timestamp);
+            record(SessionRecorder.SENT_THROTTLE, sequence, timestamp);
+        } else {
+            reserve();
+            Protocol.putThrottleCommand(buffer, dir, power);
+            record(SessionRecorder.SENT_THROTTLE, 0, 0);
+        }
+    }
+
+    /**
+     * Sends a handshake command to the remote car to establish whether the connection is valid. Once the sending
+     * thread is running the command is passed through the control lane so that it is not interleaved with other writes.
      * @throws NetworkConnectionException If sending the command resulted in an error.
      */
     void handshake() throws NetworkConnectionException {
-        write(Protocol.HANDSHAKE);
+        if (isAlive()) {
+            queue.addControl(Protocol.HANDSHAKE);
+        } else {
+            write(Protocol.HANDSHAKE);
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Accepts the binary framing offered by the remote car. The acknowledgement is sent through the control lane, and
+     * every message written after it is sent as a binary frame.
+     */
+    void acceptBinary() {
+        queue.addControl(Protocol.BINARY_HANDSHAKE);
+    }
+
+    /**
+     * Accepts the stamped text commands offered by the remote car. The acknowledgement is sent through the control
+     * lane, and every heartbeat and text command written after it carries a sequence number and timestamp.
+     */
+    void acceptStamps() {
+        queue.addControl(Protocol.STAMPED_HANDSHAKE);
     }
 
     /**
-     * Closes this controller's associated OutputStream.
-     * @throws IOException If something went wrong while closing the OutputStream.
+     * Queues a heartbeat, unless one is already waiting to be sent.
+     * @return True if a heartbeat was queued, false if one was already pending.
+     */
+    boolean heartbeat() {
+        if (!heartbeatPending.compareAndSet(false, true)) {
+            return false;
+        }
+        queue.addControl(Protocol.HEARTBEAT);
+        return true;
+    }
+
+    /**
+     * Returns the time of the last write to the reliable stream. Datagrams are not counted, since they are not echoed
+     * and therefore do not show the car that the stream is alive.
+     * @return The System.nanoTime() of the last write.
+     */
+    long getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Stops this controller and closes its associated transport.
+     * @throws IOException If something went wrong while closing the transport.
      */
     void close() throws IOException {
-        writer.close();
+        shutdown();
+        transport.close();
+    }
+
+    /**
+     * Stops the sending thread of this controller without closing the underlying transport.
+     */
+    void shutdown() {
+        active = false;
+        interrupt();
     }
 
     /**
-     * Sends a throttle command to the remote car to throttle in the given direction.
+     * Sends a throttle command to the remote car to throttle in the given direction with the given power.
      * @param dir The direction to throttle in, either neutral, forward, or backward.
+     * @param power The throttle power as a percentage.
      */
-    void throttle(Throttle dir) {
-        queue.add(Protocol.getThrottleCommand(dir));
+    void throttle(Throttle dir, int power) {
+        metrics.commandEnqueued(queue.setThrottle(dir, power));
     }
 
     /**
@@ -72,54 +360,215 @@ class ConnOutputController extends TimerTask {
      * @param angle The angle to put the wheels in, which must be between 0 and 180.
      */
     void steer(int angle) {
-        queue.add(Protocol.getSteeringCommand(angle));
+        metrics.commandEnqueued(queue.setSteer(angle));
     }
 
     @Override
     public void run() {
+        heartbeats.start();
         try {
-            // Send a command from the queue if there is any, and a general heartbeat command otherwise
-            String message = queue.isEmpty() ? Protocol.HEARTBEAT : queue.read();
-            write(message);
-        } catch (NetworkConnectionException e) {
-            connection.disconnect();
+            send();
+        } finally {
+            heartbeats.stop();
         }
     }
 
+    /**
+     * Sends every queued command as soon as it is queued, until this controller is stopped or writing fails. Each send
+     * cycle batches all pending control messages, followed by the pending steering and throttle commands, into a
+     * single write. Steering and throttle commands are held back while the governor's rate limit is in effect; in the
+     * meantime newer commands replace them, and control messages are still sent right away.
+     */
+    private void send() {
+        while (active) {
+            try {
+                queue.await();
+
+                String control;
+                while ((control = queue.pollControl()) != null) {
+                    sendControl(control);
+                }
+                if (datagrams) {
+                    // Datagrams are sent right away, so the control messages have to be written before them
+                    flushBuffer();
+                }
+                long now = System.nanoTime();
+                long delay = governor.getDelay(now);
+                if (delay <= 0) {
+                    boolean sent = false;
+                    int angle = queue.takeSteer();
+                    if (angle != ConnOutputQueue.EMPTY) {
+                        sendSteer(angle);
+                        sent = true;
+                    }
+                    int throttle = queue.takeThrottle();
+                    if (throttle != ConnOutputQueue.EMPTY) {
+                        sendThrottle(ConnOutputQueue.getDirection(throttle), ConnOutputQueue.getPower(throttle));
+                        sent = true;
+                    }
+                    if (sent) {
+                        governor.sent(now);
+                    }
+                }
+                flushBuffer();
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (NetworkConnectionException e) {
+                if (active) {
+                    connection.disconnect(DisconnectCause.WRITE_ERROR);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Bounded, lock-free collection of the commands that still have to be sent to the remote car. Steering and throttle
+     * commands are kept in a single "latest wins" slot each, since an older value is worthless once a newer one exists.
+     * Control messages (such as HANDSHAKE and CLOSE) are kept in an ordered lane and are always sent first.
+     */
     static class ConnOutputQueue {
-        private final ArrayList<String> queue;
+        static final int EMPTY = -1;
+
+        private final ConcurrentLinkedQueue<String> control;
+        private final AtomicInteger steer;
+        private final AtomicInteger throttle;
+        private volatile Thread reader;
 
         /**
          * Creates a new OutputQueue.
          */
         ConnOutputQueue() {
-            queue = new ArrayList<>();
+            control = new ConcurrentLinkedQueue<>();
+            steer = new AtomicInteger(EMPTY);
+            throttle = new AtomicInteger(EMPTY);
         }
 
         /**
          * Returns true if the current output queue contains is empty.
          * @return True if the output queue currently contains no new commands to send.
          */
-        synchronized boolean isEmpty() {
-            return queue.size() == 0;
+        boolean isEmpty() {
+            return control.isEmpty() && steer.get() == EMPTY && throttle.get() == EMPTY;
+        }
+
+        /**
+         * Returns the number of commands currently waiting in this queue.
+         * @return The number of pending control messages plus the number of occupied steering and throttle slots.
+         */
+        int size() {
+            return control.size() + (steer.get() == EMPTY ? 0 : 1) + (throttle.get() == EMPTY ? 0 : 1);
+        }
+
+        /**
+         * Returns the first control message from the control lane (FIFO) and removes it from the queue.
+         * @return The first pending control message, or null if there is none.
+         */
+        String pollControl() {
+            return control.poll();
+        }
+
+        /**
+         * Returns the latest pending steering angle and clears the steering slot.
+         * @return The latest pending steering angle, or ConnOutputQueue.EMPTY if there is none.
+         */
+        int takeSteer() {
+            return steer.getAndSet(EMPTY);
+        }
+
+        /**
+         * Returns the latest pending throttle direction and power and clears the throttle slot.
+         * @return The pending throttle, to be read with getDirection() and getPower(), or ConnOutputQueue.EMPTY if
+         * there is none.
+         */
+        int takeThrottle() {
+            return throttle.getAndSet(EMPTY);
+        }
+
+        /**
+         * Returns the throttle direction of a value taken from the throttle slot.
+         * @param throttle The value returned by takeThrottle().
+         * @return The throttle direction.
+         */
+        static Throttle getDirection(int throttle) {
+            return THROTTLES[throttle & 0xFF];
+        }
+
+        /**
+         * Returns the throttle power of a value taken from the throttle slot.
+         * @param throttle The value returned by takeThrottle().
+         * @return The throttle power as a percentage.
+         */
+        static int getPower(int throttle) {
+            return throttle >>> 8;
+        }
+
+        /**
+         * Waits for a command to be added if the queue is empty. Only a single thread may read from the queue.
+         * @throws InterruptedException If the calling thread was interrupted while waiting.
+         */
+        void await() throws InterruptedException {
+            reader = Thread.currentThread();
+            while (isEmpty()) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        /**
+         * Adds a control message to the ordered control lane.
+         * @param message The control message to add to the queue.
+         */
+        void addControl(String message) {
+            control.offer(message);
+            signal();
+        }
+
+        /**
+         * Replaces the pending steering command, if any, with one for the given angle.
+         * @param angle The angle to steer towards.
+         * @return True if a pending steering command was replaced (and thereby dropped), false otherwise.
+         */
+        boolean setSteer(int angle) {
+            boolean replaced = steer.getAndSet(angle) != EMPTY;
+            signal();
+            return replaced;
+        }
+
+        /**
+         * Replaces the pending throttle command, if any, with one for the given direction at full power.
+         * @param dir The direction to throttle in.
+         * @return True if a pending throttle command was replaced (and thereby dropped), false otherwise.
+         */
+        boolean setThrottle(Throttle dir) {
+            return setThrottle(dir, Protocol.MAX_POWER);
         }
 
         /**
-         * Returns the first command from the queue (FIFO) and removes it from the queue.
-         * @return The first command from the queue.
+         * Replaces the pending throttle command, if any, with one for the given direction and power.
+         * @param dir The direction to throttle in.
+         * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+         * @return True if a pending throttle command was replaced (and thereby dropped), false otherwise.
          */
-        synchronized String read() {
-            String message = queue.get(0);
-            queue.remove(0);
-            return message;
+        boolean setThrottle(Throttle dir, int power) {
+            boolean replaced = throttle.getAndSet(dir.ordinal() | Protocol.clampPower(power) << 8) != EMPTY;
+            signal();
+            return replaced;
         }
 
         /**
-         * Adds a new command to the queue.
-         * @param message The command to add to the queue.
+         * Wakes up the thread waiting for commands, if any.
          */
-        synchronized void add(String message) {
-            queue.add(message);
+        private void signal() {
+            Thread waiting = reader;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
         }
     }
 }
@@ -0,0 +1,19 @@
+package controller.connection;
+
+/**
+ * The reason a connection to the car ended.
+ */
+public enum DisconnectCause {
+    /** The user (or the application) asked to disconnect. */
+    USER,
+    /** The car sent a CLOSE message. */
+    REMOTE_CLOSE,
+    /** The car closed the connection without sending a CLOSE message. */
+    END_OF_STREAM,
+    /** Reading from the car failed. */
+    READ_ERROR,
+    /** Writing to the car failed. */
+    WRITE_ERROR,
+    /** Nothing was received from the car within the liveness deadline. */
+    LIVENESS_TIMEOUT
+}
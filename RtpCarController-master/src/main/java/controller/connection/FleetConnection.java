@@ -0,0 +1,329 @@
+package controller.connection;
+
+import model.Car;
+import model.CarListener;
+import model.CarState;
+import model.Steer;
+import model.Throttle;
+import util.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The connection to a single car of a fleet. All I/O is non-blocking and happens on the thread of the owning
+ * FleetController; the Car may be driven from any thread, which only updates the latest-wins command slots and
+ * notifies the fleet. Like ConnController, commands are stamped with a sequence number and timestamp once the car
+ * accepted stamping or the binary framing, and the echoes are matched back to measure the round-trip time.
+ */
+class FleetConnection implements CarListener, InboundFramer.Handler {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_MESSAGE_SIZE = Math.max(Protocol.FRAME_SIZE, Protocol.MAX_COMMAND_SIZE);
+
+    private final FleetController fleet;
+    private final Car car;
+    private final SocketChannel channel;
+    private final ConnOutputController.ConnOutputQueue queue;
+    private final AtomicBoolean dirty;
+    private final InboundFramer framer;
+    private final ByteBuffer outbound;
+    private final RttTracker rtt;
+    private SelectionKey key;
+
+    private volatile boolean active;
+    private boolean binaryAccepted;
+    private boolean binary;
+    private boolean stampsAccepted;
+    private boolean stamped;
+    private int sequence;
+    private int sentSteer;
+    private Throttle sentThrottle;
+    private int sentPower;
+    private long lastWrite;
+
+    /**
+     * Creates a new FleetConnection.
+     * @param fleet The fleet this connection belongs to.
+     * @param car The car driven over this connection.
+     * @param channel The non-blocking channel to the car, which may still be connecting.
+     */
+    FleetConnection(FleetController fleet, Car car, SocketChannel channel) {
+        this.fleet = fleet;
+        this.car = car;
+        this.channel = channel;
+        this.queue = new ConnOutputController.ConnOutputQueue();
+        this.dirty = new AtomicBoolean();
+        this.framer = new InboundFramer(this);
+        this.outbound = ByteBuffer.allocate(BUFFER_SIZE);
+        this.rtt = new RttTracker();
+        this.sentSteer = ConnOutputController.ConnOutputQueue.EMPTY;
+        this.sentPower = Protocol.MAX_POWER;
+    }
+
+    Car getCar() {
+        return car;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns true if the car has answered the handshake and the connection is not closed.
+     * @return True if this connection is active.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns the tracker matching the echoes of the car to the commands sent to it.
+     * @return The round-trip time tracker of this connection.
+     */
+    RttTracker getRttTracker() {
+        return rtt;
+    }
+
+    /**
+     * Returns the time of the last write to the car, as a System.nanoTime() value.
+     * @return The time of the last write to the car.
+     */
+    long getLastWrite() {
+        return lastWrite;
+    }
+
+    /**
+     * Finishes connecting the channel and sends the handshake.
+     * @throws IOException If the connection could not be established.
+     */
+    void finishConnect() throws IOException {
+        channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        Protocol.putCommand(outbound, Protocol.HANDSHAKE);
+        flush();
+    }
+
+    /**
+     * Reads everything the car has sent and handles every complete message.
+     * @throws IOException If reading failed or the car closed the connection.
+     */
+    void read() throws IOException {
+        if (framer.read(channel) < 0) {
+            throw new IOException("Connection closed by car");
+        }
+    }
+
+    @Override
+    public void onHandshake() {
+        if (!active) {
+            active = true;
+            car.setActive(true);
+            car.reset();
+        }
+    }
+
+    @Override
+    public void onBinaryOffer() {
+        if (!binaryAccepted) {
+            binaryAccepted = true;
+            queue.addControl(Protocol.BINARY_HANDSHAKE);
+            fleet.markDirty(this);
+        }
+    }
+
+    @Override
+    public void onStampOffer() {
+        if (!stampsAccepted) {
+            stampsAccepted = true;
+            queue.addControl(Protocol.STAMPED_HANDSHAKE);
+            fleet.markDirty(this);
+        }
+    }
+
+    @Override
+    public void onEcho(int sequence, int timestamp) {
+        rtt.echoed(sequence, timestamp, System.nanoTime());
+    }
+
+    @Override
+    public void onTelemetry(long timestamp, int speed, int battery, int heading) {
+        car.getTelemetry().add(timestamp, speed, battery, heading);
+    }
+
+    @Override
+    public void onClose() throws IOException {
+        throw new IOException("Connection closed by car");
+    }
+
+    /**
+     * Encodes all pending commands into the outbound buffer and writes as much of it as possible.
+     * @throws IOException If writing to the car failed.
+     */
+    void sendPending() throws IOException {
+        dirty.set(false);
+        if (!active) {
+            return;
+        }
+        String control;
+        while (outbound.remaining() >= MAX_MESSAGE_SIZE && (control = queue.pollControl()) != null) {
+            if (control.equals(Protocol.BINARY_HANDSHAKE)) {
+                Protocol.putCommand(outbound, control);
+                binary = true;
+            } else if (control.equals(Protocol.STAMPED_HANDSHAKE)) {
+                Protocol.putCommand(outbound, control);
+                stamped = true;
+            } else if (binary) {
+                putFrame(Protocol.getOpcode(control));
+            } else {
+                Protocol.putCommand(outbound, control);
+            }
+        }
+        if (outbound.remaining() >= MAX_MESSAGE_SIZE) {
+            int angle = queue.takeSteer();
+            if (angle != ConnOutputController.ConnOutputQueue.EMPTY && angle != sentSteer) {
+                sentSteer = angle;
+                if (binary) {
+                    putFrame(Protocol.OP_STEER);
+                } else if (stamped) {
+                    long now = System.nanoTime();
+                    Protocol.putSteeringCommand(outbound, angle, stamp(now), RttTracker.toTimestamp(now));
+                } else {
+                    Protocol.putSteeringCommand(outbound, angle);
+                }
+            }
+        }
+        if (outbound.remaining() >= MAX_MESSAGE_SIZE) {
+            int throttle = queue.takeThrottle();
+            if (throttle != ConnOutputController.ConnOutputQueue.EMPTY) {
+                Throttle dir = ConnOutputController.ConnOutputQueue.getDirection(throttle);
+                int power = ConnOutputController.ConnOutputQueue.getPower(throttle);
+                if (dir != sentThrottle || power != sentPower) {
+                    sentThrottle = dir;
+                    sentPower = power;
+                    if (binary) {
+                        putFrame(Protocol.OP_THROTTLE);
+                    } else if (stamped) {
+                        long now = System.nanoTime();
+                        Protocol.putThrottleCommand(outbound, dir, power, stamp(now), RttTracker.toTimestamp(now));
+                    } else {
+                        Protocol.putThrottleCommand(outbound, dir, power);
+                    }
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends a heartbeat to the car.
+     * @throws IOException If writing to the car failed.
+     */
+    void sendHeartbeat() throws IOException {
+        if (outbound.remaining() < MAX_MESSAGE_SIZE) {
+            return;
+        }
+        if (binary) {
+            putFrame(Protocol.OP_HEARTBEAT);
+        } else if (stamped) {
+            long now = System.nanoTime();
+            Protocol.putCommand(outbound, Protocol.HEARTBEAT, stamp(now), RttTracker.toTimestamp(now));
+        } else {
+            Protocol.putCommand(outbound, Protocol.HEARTBEAT);
+        }
+        flush();
+    }
+
+    /**
+     * Writes as much of the outbound buffer as the channel accepts, and waits for the channel to become writable if
+     * anything is left.
+     * @throws IOException If writing to the car failed.
+     */
+    void flush() throws IOException {
+        if (outbound.position() == 0) {
+            return;
+        }
+        outbound.flip();
+        channel.write(outbound);
+        outbound.compact();
+        lastWrite = System.nanoTime();
+        int ops = outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+        if (outbound.position() == 0 && !queue.isEmpty()) {
+            fleet.markDirty(this);
+        }
+    }
+
+    /**
+     * Encodes a binary frame of the given type, carrying the last sent steering and throttle state, into the outbound
+     * buffer.
+     * @param opcode The type of the frame (one of the Protocol.OP_ constants).
+     */
+    private void putFrame(byte opcode) {
+        int angle = sentSteer == ConnOutputController.ConnOutputQueue.EMPTY
+                ? Protocol.getDegreesFromSteer(Steer.NEUTRAL) : sentSteer;
+        Throttle dir = sentThrottle == null ? Throttle.NEUTRAL : sentThrottle;
+        long now = System.nanoTime();
+        Protocol.putFrame(outbound, opcode, angle, dir, sentPower, stamp(now), RttTracker.toTimestamp(now));
+    }
+
+    /**
+     * Takes the next sequence number for a command, and records its send time so that its echo can be matched back.
+     * @param now The System.nanoTime() at which the command is stamped.
+     * @return The sequence number of the command.
+     */
+    private int stamp(long now) {
+        int next = sequence++;
+        rtt.sent(next, now);
+        return next;
+    }
+
+    /**
+     * Marks this connection as having pending commands.
+     * @return True if the connection was not marked before, in which case the caller must hand it to the fleet thread.
+     */
+    boolean markDirty() {
+        return dirty.compareAndSet(false, true);
+    }
+
+    /**
+     * Sets the Car to an inactive state and closes the channel.
+     */
+    void close() {
+        if (active) {
+            active = false;
+            car.setActive(false);
+        }
+        car.removeListener(this);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is being discarded either way
+        }
+    }
+
+    @Override
+    public void carChanged(Car car, long previous, long current) {
+        if (!CarState.isDrivingChanged(previous, current)) {
+            return;
+        }
+        // Unchanged values are filtered out on the fleet thread, against what was actually sent
+        queue.setSteer(CarState.getSteer(current));
+        Throttle nThrottle = CarState.getThrottle(current);
+        if (nThrottle != null) {
+            queue.setThrottle(nThrottle, CarState.getPower(current));
+        }
+        fleet.markDirty(this);
+    }
+}
@@ -0,0 +1,257 @@
+package controller.connection;
+
+import exception.NetworkConnectionException;
+import model.Car;
+import util.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller driving a fleet of cars from a single thread. Every car gets its own non-blocking connection, and all
+ * connections are multiplexed over one Selector; heartbeats are scheduled on a shared timing wheel. The number of
+ * threads therefore stays constant as the fleet grows, unlike ConnController which uses two threads per car.
+ */
+public class FleetController implements Closeable {
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final Selector selector;
+    private final Map<Car, FleetConnection> connections;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ConcurrentLinkedQueue<FleetConnection> dirty;
+    private final HeartbeatWheel wheel;
+    private final long heartbeatNanos;
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates a new FleetController and starts its thread.
+     * @throws NetworkConnectionException If the selector could not be opened.
+     */
+    public FleetController() throws NetworkConnectionException {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new NetworkConnectionException("Exception while trying to open a selector", e);
+        }
+        connections = new ConcurrentHashMap<>();
+        tasks = new ConcurrentLinkedQueue<>();
+        dirty = new ConcurrentLinkedQueue<>();
+        wheel = new HeartbeatWheel(TICK_MILLIS, WHEEL_SLOTS);
+        heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Protocol.HEARTBEAT_PERIOD);
+        running = true;
+        thread = new Thread(this::run, "FleetController");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts connecting the given Car to the car at the given address. The connection is set up asynchronously; the
+     * Car becomes active once the car has answered the handshake.
+     * @param car The Car to drive over the new connection.
+     * @param address The address of the car.
+     * @throws NetworkConnectionException If the Car is already part of the fleet, or the connection could not be
+     * started.
+     */
+    public void connect(Car car, InetSocketAddress address) throws NetworkConnectionException {
+        if (connections.containsKey(car)) {
+            throw new NetworkConnectionException("Car is already connected to the fleet");
+        }
+        FleetConnection connection;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            connection = new FleetConnection(this, car, channel);
+            connections.put(car, connection);
+            channel.connect(address);
+        } catch (IOException e) {
+            connections.remove(car);
+            throw new NetworkConnectionException("Exception while trying to connect to " + address, e);
+        }
+        car.addListener(connection);
+        execute(() -> register(connection));
+    }
+
+    /**
+     * Closes the connection of the given Car, if it is part of the fleet.
+     * @param car The Car to disconnect.
+     */
+    public void disconnect(Car car) {
+        FleetConnection connection = connections.get(car);
+        if (connection != null) {
+            execute(() -> close(connection));
+        }
+    }
+
+    /**
+     * Returns true if the given Car is part of the fleet and its car has answered the handshake.
+     * @param car The Car to check.
+     * @return True if the connection of the given Car is active.
+     */
+    public boolean isActive(Car car) {
+        FleetConnection connection = connections.get(car);
+        return connection != null && connection.isActive();
+    }
+
+    /**
+     * Returns the exponentially smoothed round-trip time to the given Car, measured from the echoes of its stamped
+     * commands and heartbeats.
+     * @param car The Car to return the round-trip time of.
+     * @return The smoothed round-trip time in nanoseconds, or 0 if the Car is not part of the fleet or none was
+     * measured yet.
+     */
+    public long getSmoothedRtt(Car car) {
+        FleetConnection connection = connections.get(car);
+        return connection == null ? 0 : connection.getRttTracker().getSmoothed();
+    }
+
+    /**
+     * Returns the number of cars in the fleet, including the ones still connecting.
+     * @return The number of cars in the fleet.
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Closes the connections of all cars and stops the fleet thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a connection with pending commands to the fleet thread, unless it was already handed over.
+     * @param connection The connection with pending commands.
+     */
+    void markDirty(FleetConnection connection) {
+        if (connection.markDirty()) {
+            dirty.offer(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Runs the given task on the fleet thread.
+     * @param task The task to run.
+     */
+    private void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void register(FleetConnection connection) {
+        try {
+            SocketChannel channel = connection.getChannel();
+            int ops = channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+            connection.setKey(channel.register(selector, ops, connection));
+            if (ops == SelectionKey.OP_READ) {
+                connection.finishConnect();
+            }
+            wheel.schedule(connection, System.nanoTime() + heartbeatNanos);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void close(FleetConnection connection) {
+        connections.remove(connection.getCar(), connection);
+        connection.close();
+    }
+
+    /**
+     * Sends a heartbeat to the given connection if it has been idle for a heartbeat period, and schedules its next
+     * deadline.
+     * @param connection The connection whose deadline passed.
+     */
+    private void heartbeat(FleetConnection connection) {
+        if (!connection.getChannel().isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            if (connection.isActive() && now - connection.getLastWrite() >= heartbeatNanos) {
+                connection.sendHeartbeat();
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        long deadline = connection.isActive() ? connection.getLastWrite() + heartbeatNanos : now + heartbeatNanos;
+        wheel.schedule(connection, deadline);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                FleetConnection connection = (FleetConnection) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        connection.finishConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+
+            FleetConnection connection;
+            while ((connection = dirty.poll()) != null) {
+                try {
+                    connection.sendPending();
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+
+            wheel.advance(System.nanoTime(), this::heartbeat);
+        }
+
+        for (FleetConnection connection : connections.values()) {
+            close(connection);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // The fleet is shutting down either way
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package controller.connection;
+
+import util.Scheduler;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Schedules the heartbeats of a connection on the shared scheduler thread, instead of on a timer thread of its own.
+ * A heartbeat is due once nothing has been written for a full period, so every command written to the car moves the
+ * next heartbeat back; it is also due once nothing has been received for a full period, since a car that does not echo
+ * commands only proves the link alive by echoing heartbeats, which a busy link would otherwise never send. Runs use
+ * fixed-delay semantics: after a pause (such as a long GC) at most a single late heartbeat is sent, instead of a burst
+ * catching up on the missed ones.
+ */
+class HeartbeatScheduler implements Runnable {
+    private final ConnOutputController output;
+    private final LongSupplier period;
+    private final LongSupplier lastReceived;
+    private final ConnMetrics metrics;
+    private ScheduledFuture<?> next;
+    private long lastHeartbeat;
+    private boolean running;
+
+    /**
+     * Creates a new HeartbeatScheduler, which is not yet started.
+     * @param output The controller sending the heartbeats and tracking the time of the last write.
+     * @param period Supplies the current heartbeat period in nanoseconds, which may change between heartbeats.
+     * @param lastReceived Supplies the System.nanoTime() at which bytes were last received from the car.
+     * @param metrics The metrics to record the lateness of heartbeats in.
+     */
+    HeartbeatScheduler(ConnOutputController output, LongSupplier period, LongSupplier lastReceived,
+                       ConnMetrics metrics) {
+        this.output = output;
+        this.period = period;
+        this.lastReceived = lastReceived;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts scheduling heartbeats, the first one a period after the last write.
+     */
+    synchronized void start() {
+        running = true;
+        lastHeartbeat = System.nanoTime();
+        schedule(period.getAsLong());
+    }
+
+    /**
+     * Stops scheduling heartbeats.
+     */
+    synchronized void stop() {
+        running = false;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    private void schedule(long delay) {
+        next = Scheduler.getInstance().getExecutor().schedule(this, delay, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void run() {
+        if (!running) {
+            return;
+        }
+        long now = System.nanoTime();
+        long currentPeriod = period.getAsLong();
+        long lastWrite = output.getLastWrite();
+        // A car that stays silent gets one heartbeat per period, rather than one per run
+        long received = Math.max(lastReceived.getAsLong() - lastHeartbeat, 0) + lastHeartbeat;
+        // Whichever of the two happened longer ago decides
+        long due = (lastWrite - received < 0 ? lastWrite : received) + currentPeriod;
+        if (now - due >= 0) {
+            if (output.heartbeat()) {
+                metrics.heartbeatSent(now - due);
+                lastHeartbeat = now;
+            }
+            // Count the next period from now, skipping any periods missed while this task was delayed
+            schedule(currentPeriod);
+        } else {
+            schedule(due - now);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package controller.connection;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel shared by all connections of a fleet. Every connection occupies a single entry, which expires
+ * at its heartbeat deadline; the expiry handler then decides whether a heartbeat is due or the connection was written
+ * to in the meantime, and schedules it again. Scheduling and expiring are O(1) per connection, regardless of the fleet
+ * size. The wheel is not thread-safe and must only be used by the thread driving it.
+ */
+class HeartbeatWheel {
+    private final long tickNanos;
+    private final ArrayList<Entry>[] slots;
+    private long currentTick;
+
+    /**
+     * A connection scheduled on the wheel, together with the tick at which it expires.
+     */
+    static class Entry {
+        private final FleetConnection connection;
+        private final long tick;
+
+        private Entry(FleetConnection connection, long tick) {
+            this.connection = connection;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Creates a new HeartbeatWheel.
+     * @param tickMillis The resolution of the wheel, in milliseconds.
+     * @param slotCount The number of slots of the wheel; deadlines further away than one revolution are kept in their
+     *                  slot for multiple revolutions.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HeartbeatWheel(long tickMillis, int slotCount) {
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.slots = new ArrayList[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.currentTick = Math.floorDiv(System.nanoTime(), tickNanos);
+    }
+
+    /**
+     * Schedules the given connection to expire at the given deadline, or at the next tick if the deadline has passed.
+     * @param connection The connection to schedule.
+     * @param deadlineNanos The deadline, as a System.nanoTime() value.
+     */
+    void schedule(FleetConnection connection, long deadlineNanos) {
+        long tick = Math.max(Math.floorDiv(deadlineNanos, tickNanos), currentTick + 1);
+        slots[getSlot(tick)].add(new Entry(connection, tick));
+    }
+
+    /**
+     * Advances the wheel up to the given time, passing every connection whose deadline passed to the given handler.
+     * @param nowNanos The current time, as a System.nanoTime() value.
+     * @param expired The handler to pass expired connections to.
+     */
+    void advance(long nowNanos, Consumer<FleetConnection> expired) {
+        long targetTick = Math.floorDiv(nowNanos, tickNanos);
+        while (currentTick < targetTick) {
+            currentTick++;
+            ArrayList<Entry> slot = slots[getSlot(currentTick)];
+            int i = 0;
+            while (i < slot.size()) {
+                Entry entry = slot.get(i);
+                if (entry.tick <= currentTick) {
+                    // Swap-remove, the order within a slot does not matter
+                    slot.set(i, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    expired.accept(entry.connection);
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the slot holding the entries of the given tick. System.nanoTime() may be negative, so the
+     * tick is reduced with a floor modulus to keep the index in range.
+     */
+    private int getSlot(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.length);
+    }
+}
@@ -0,0 +1,283 @@
+package controller.connection;
+
+import util.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the bytes received from a car into newline-terminated messages and dispatches them to a handler. Messages are
+ * recognised directly from the bytes in a direct ByteBuffer, so that no String is allocated per received line.
+ */
+class InboundFramer {
+    private static final int BUFFER_SIZE = 1024;
+    private static final byte[] HANDSHAKE = Protocol.HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BINARY_HANDSHAKE = Protocol.BINARY_HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STAMPED_HANDSHAKE = Protocol.STAMPED_HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE_CONNECTION = Protocol.CLOSE_CONNECTION.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TELEMETRY = Protocol.TELEMETRY.getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBuffer buffer;
+    private final Handler handler;
+    // Position after the last number parsed by parseSigned()
+    private int cursor;
+
+    /**
+     * Receives the messages recognised by an InboundFramer. Messages that are not recognised, such as the echoes of
+     * unstamped commands, are skipped.
+     */
+    interface Handler {
+        /**
+         * Called when the car answered the handshake.
+         * @throws IOException If handling the message failed.
+         */
+        void onHandshake() throws IOException;
+
+        /**
+         * Called when the car offered the binary framing.
+         * @throws IOException If handling the message failed.
+         */
+        void onBinaryOffer() throws IOException;
+
+        /**
+         * Called when the car offered stamped text commands. Handlers that do not stamp their commands ignore it.
+         * @throws IOException If handling the message failed.
+         */
+        default void onStampOffer() throws IOException {
+        }
+
+        /**
+         * Called when the car closed the connection.
+         * @throws IOException If handling the message failed.
+         */
+        void onClose() throws IOException;
+
+        /**
+         * Called when the car echoed a command stamped with a sequence number and timestamp.
+         * @param sequence The sequence number carried by the echo.
+         * @param timestamp The timestamp carried by the echo, in microseconds.
+         * @throws IOException If handling the message failed.
+         */
+        default void onEcho(int sequence, int timestamp) throws IOException {
+        }
+
+        /**
+         * Called when the car reported a telemetry sample.
+         * @param timestamp The time at which the car took the sample, in microseconds of the car's clock.
+         * @param speed The speed of the car in millimetres per second, negative when reversing.
+         * @param battery The battery voltage in millivolts.
+         * @param heading The heading of the car in tenths of a degree.
+         * @throws IOException If handling the message failed.
+         */
+        default void onTelemetry(long timestamp, int speed, int battery, int heading) throws IOException {
+        }
+    }
+
+    /**
+     * Creates a new InboundFramer.
+     * @param handler The handler to dispatch the received messages to.
+     */
+    InboundFramer(Handler handler) {
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the available bytes from the given channel and dispatches every complete message. Blocks if the channel
+     * is in blocking mode and no bytes are available.
+     * @param channel The channel to read from.
+     * @return The number of bytes read, or -1 if the car closed the connection.
+     * @throws IOException If reading failed, a message exceeds the buffer size, or the handler failed.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        int read = channel.read(buffer);
+        if (read > 0) {
+            frame();
+        }
+        return read;
+    }
+
+    /**
+     * Dispatches every complete message in the buffer and keeps the remainder for the next read.
+     * @throws IOException If a message exceeds the buffer size or the handler failed.
+     */
+    private void frame() throws IOException {
+        buffer.flip();
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                dispatch(start, end);
+                start = i + 1;
+            }
+        }
+        buffer.position(start);
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            throw new IOException("Message from car exceeds " + BUFFER_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Dispatches the message between the given positions of the buffer, based on its first byte.
+     * @param start The position of the first byte of the message.
+     * @param end The position after the last byte of the message, excluding the line terminator.
+     * @throws IOException If the handler failed.
+     */
+    private void dispatch(int start, int end) throws IOException {
+        if (start == end) {
+            return;
+        }
+        switch (buffer.get(start)) {
+            case 'H':
+                if (matches(start, end, HANDSHAKE)) {
+                    handler.onHandshake();
+                } else if (matches(start, end, BINARY_HANDSHAKE)) {
+                    handler.onBinaryOffer();
+                } else if (matches(start, end, STAMPED_HANDSHAKE)) {
+                    handler.onStampOffer();
+                } else {
+                    dispatchEcho(start, end);
+                }
+                break;
+            case 'C':
+                if (matches(start, end, CLOSE_CONNECTION)) {
+                    handler.onClose();
+                }
+                break;
+            case 'T':
+                if (startsWith(start, end, TELEMETRY)) {
+                    dispatchTelemetry(start + TELEMETRY.length, end);
+                } else {
+                    dispatchEcho(start, end);
+                }
+                break;
+            default:
+                dispatchEcho(start, end);
+                break;
+        }
+    }
+
+    /**
+     * Dispatches the message between the given positions of the buffer as an echo if it ends in a sequence number and
+     * a timestamp, such as "HB 12 3456789".
+     * @param start The position of the first byte of the message.
+     * @param end The position after the last byte of the message, excluding the line terminator.
+     * @throws IOException If the handler failed.
+     */
+    private void dispatchEcho(int start, int end) throws IOException {
+        long timestamp = parseUnsigned(start, end);
+        if (timestamp < 0) {
+            return;
+        }
+        long sequence = parseUnsigned(start, end - digits(start, end) - 1);
+        if (sequence >= 0) {
+            handler.onEcho((int) sequence, (int) timestamp);
+        }
+    }
+
+    /**
+     * Dispatches the fields of a telemetry message, such as "TELEMETRY 123456 850 7400 900", if all of them are valid.
+     * @param start The position after the message type.
+     * @param end The position after the last byte of the message, excluding the line terminator.
+     * @throws IOException If the handler failed.
+     */
+    private void dispatchTelemetry(int start, int end) throws IOException {
+        cursor = start;
+        long timestamp = parseSigned(end);
+        long speed = parseSigned(end);
+        long battery = parseSigned(end);
+        long heading = parseSigned(end);
+        if (cursor == end && timestamp >= 0 && isInt(speed) && isInt(battery) && isInt(heading)) {
+            handler.onTelemetry(timestamp, (int) speed, (int) battery, (int) heading);
+        }
+    }
+
+    /**
+     * Parses the space-prefixed, optionally negative decimal number at the cursor and moves the cursor past it.
+     * @return The parsed number, or Long.MIN_VALUE (leaving the cursor in place) if there is no such number.
+     */
+    private long parseSigned(int end) {
+        int i = cursor;
+        if (i >= end || buffer.get(i) != ' ') {
+            return Long.MIN_VALUE;
+        }
+        i++;
+        boolean negative = i < end && buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int first = i;
+        long value = 0;
+        while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9' && i - first < 18) {
+            value = value * 10 + (buffer.get(i) - '0');
+            i++;
+        }
+        if (i == first || (i < end && buffer.get(i) != ' ')) {
+            return Long.MIN_VALUE;
+        }
+        cursor = i;
+        return negative ? -value : value;
+    }
+
+    private static boolean isInt(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of decimal digits directly before the given end position, after the given start position.
+     */
+    private int digits(int start, int end) {
+        int i = end;
+        while (i > start && buffer.get(i - 1) >= '0' && buffer.get(i - 1) <= '9') {
+            i--;
+        }
+        return end - i;
+    }
+
+    /**
+     * Parses the unsigned 32-bit decimal number directly before the given end position, which must be preceded by a
+     * space that does not start the message.
+     * @return The parsed number, or -1 if there is no such number.
+     */
+    private long parseUnsigned(int start, int end) {
+        int count = digits(start, end);
+        int first = end - count;
+        if (count == 0 || count > 10 || first - 1 <= start || buffer.get(first - 1) != ' ') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = first; i < end; i++) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return value > 0xFFFFFFFFL ? -1 : value;
+    }
+
+    /**
+     * Returns whether the bytes between the given positions of the buffer start with the given message type, followed
+     * by a space.
+     */
+    private boolean startsWith(int start, int end, byte[] type) {
+        return end - start > type.length && buffer.get(start + type.length) == ' '
+                && matches(start, start + type.length, type);
+    }
+
+    /**
+     * Returns whether the bytes between the given positions of the buffer equal the given message.
+     */
+    private boolean matches(int start, int end, byte[] message) {
+        if (end - start != message.length) {
+            return false;
+        }
+        for (int i = 0; i < message.length; i++) {
+            if (buffer.get(start + i) != message[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+package controller.connection;
+
+import util.Protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the commands a proportional input device (such as a mouse drag or a gamepad axis) produces for a link.
+ * Steering angles and throttle powers are quantized to a configurable resolution, changes smaller than a configurable
+ * threshold are suppressed, and steering and throttle commands are sent at most at a configurable rate. The rate limit
+ * delays rather than drops: the latest value is always sent once the interval has passed. Neutral and extreme values
+ * are never suppressed, so the car always comes to rest exactly where the input does.
+ */
+public class InputGovernor {
+    /** Returned by the filter methods if a value is suppressed. */
+    static final int SUPPRESSED = -1;
+
+    private static final int NEUTRAL_ANGLE = 90;
+
+    private volatile int steerResolution;
+    private volatile int steerThreshold;
+    private volatile int powerResolution;
+    private volatile int powerThreshold;
+    private volatile long minInterval;
+    // Guarded by this governor
+    private int lastSteer;
+    private int lastPower;
+    // Only used by the sending thread
+    private long lastSend;
+
+    /**
+     * Creates a new InputGovernor with a resolution and threshold of 2 degrees and 5 percent, and at most 50 commands
+     * per second. The keyboard controls (0, 90 or 180 degrees at full power) are not affected by these defaults.
+     */
+    public InputGovernor() {
+        steerResolution = 2;
+        steerThreshold = 2;
+        powerResolution = 5;
+        powerThreshold = 5;
+        setMaxRate(50);
+        lastSend = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        reset();
+    }
+
+    /**
+     * Sets the steering resolution and the smallest steering change that is sent.
+     * @param resolution The step, in degrees, to which steering angles are rounded.
+     * @param threshold The smallest change, in degrees, that is sent.
+     */
+    public void setSteerResolution(int resolution, int threshold) {
+        this.steerResolution = Math.max(1, resolution);
+        this.steerThreshold = threshold;
+    }
+
+    /**
+     * Sets the throttle power resolution and the smallest power change that is sent.
+     * @param resolution The step, in percent, to which throttle powers are rounded.
+     * @param threshold The smallest change, in percent, that is sent.
+     */
+    public void setPowerResolution(int resolution, int threshold) {
+        this.powerResolution = Math.max(1, resolution);
+        this.powerThreshold = threshold;
+    }
+
+    /**
+     * Sets the maximum number of send cycles per second in which steering and throttle commands are sent.
+     * @param rate The maximum rate in hertz, or 0 for no limit.
+     */
+    public void setMaxRate(int rate) {
+        this.minInterval = rate <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    /**
+     * Forgets the last values sent, so that the next values are always sent. Called for every new connection.
+     */
+    synchronized void reset() {
+        lastSteer = SUPPRESSED;
+        lastPower = SUPPRESSED;
+    }
+
+    /**
+     * Quantizes the given steering angle and returns it, unless it differs too little from the last angle sent.
+     * @param angle The steering angle produced by the input.
+     * @return The steering angle to send, or InputGovernor.SUPPRESSED if none should be sent.
+     */
+    synchronized int filterSteer(int angle) {
+        int resolution = steerResolution;
+        int quantized = Math.round((float) angle / resolution) * resolution;
+        quantized = Math.max(0, Math.min(Protocol.MAX_STEER_ANGLE, quantized));
+        boolean significant = quantized == 0 || quantized == NEUTRAL_ANGLE || quantized == Protocol.MAX_STEER_ANGLE
+                || lastSteer == SUPPRESSED || Math.abs(quantized - lastSteer) >= steerThreshold;
+        if (!significant || quantized == lastSteer) {
+            return SUPPRESSED;
+        }
+        lastSteer = quantized;
+        return quantized;
+    }
+
+    /**
+     * Quantizes the given throttle power and returns it, unless it differs too little from the last power sent.
+     * @param power The throttle power produced by the input, as a percentage.
+     * @param directionChanged True if the throttle direction changed as well, in which case the power is never
+     *                         suppressed.
+     * @return The throttle power to send, or InputGovernor.SUPPRESSED if none should be sent.
+     */
+    synchronized int filterPower(int power, boolean directionChanged) {
+        int resolution = powerResolution;
+        int quantized = Protocol.clampPower(Math.round((float) power / resolution) * resolution);
+        boolean significant = directionChanged || quantized == 0 || quantized == Protocol.MAX_POWER
+                || lastPower == SUPPRESSED || Math.abs(quantized - lastPower) >= powerThreshold;
+        if (!significant || (!directionChanged && quantized == lastPower)) {
+            return SUPPRESSED;
+        }
+        lastPower = quantized;
+        return quantized;
+    }
+
+    /**
+     * Returns how long the sending thread has to wait before it may send the next steering or throttle command.
+     * @param now The current System.nanoTime().
+     * @return The time to wait in nanoseconds, or a value of at most 0 if a command may be sent right away.
+     */
+    long getDelay(long now) {
+        long interval = minInterval;
+        return interval == 0 ? 0 : lastSend + interval - now;
+    }
+
+    /**
+     * Records that the sending thread sent steering or throttle commands.
+     * @param now The System.nanoTime() at which the commands were sent.
+     */
+    void sent(long now) {
+        lastSend = now;
+    }
+}
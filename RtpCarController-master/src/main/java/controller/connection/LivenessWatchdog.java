@@ -0,0 +1,105 @@
+package controller.connection;
+
+import util.Scheduler;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Declares the link to the car dead if nothing was received from it for a configurable deadline. The car echoes every
+ * heartbeat, and a heartbeat is sent whenever nothing was received for a heartbeat period, so on a healthy link bytes
+ * arrive at least once per heartbeat period; a half-open connection, on which writes keep succeeding while the car is
+ * gone, is detected within the deadline plus one check period. The watchdog is only armed once the car echoed a
+ * message on the connection, so that a car that never echoes anything is not disconnected over and over. Only the
+ * deadline is checked on the shared scheduler; closing the connection may block, so it is done on a thread of its own.
+ */
+class LivenessWatchdog implements Runnable {
+    private static final long CHECK_PERIOD = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ConnController connection;
+    private volatile long timeout;
+    private volatile long lastReceived;
+    private volatile boolean armed;
+    private ScheduledFuture<?> check;
+
+    /**
+     * Creates a new LivenessWatchdog, which is not yet started.
+     * @param connection The controller to notify when the link is declared dead.
+     * @param timeout The time after which the link is declared dead if nothing was received, in milliseconds.
+     */
+    LivenessWatchdog(ConnController connection, long timeout) {
+        this.connection = connection;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Sets the time after which the link is declared dead if nothing was received. Takes effect on the next check.
+     * @param timeout The deadline in milliseconds, or 0 to never declare the link dead.
+     */
+    void setTimeout(long timeout) {
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Returns the time after which the link is declared dead if nothing was received.
+     * @return The deadline in nanoseconds, or 0 if the link is never declared dead.
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Records that bytes were received from the car at the given time.
+     * @param nanos The System.nanoTime() at which the bytes were received.
+     */
+    void received(long nanos) {
+        lastReceived = nanos;
+    }
+
+    /**
+     * Returns the time at which bytes were last received from the car.
+     * @return The System.nanoTime() of the last receive, or of the start of the watchdog if nothing was received since.
+     */
+    long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * Records that the car echoed a message, showing that it answers heartbeats and so arming the watchdog.
+     */
+    void echoed() {
+        armed = true;
+    }
+
+    /**
+     * Starts watching the link, counting the deadline from now. The link is only declared dead once armed.
+     */
+    synchronized void start() {
+        stop();
+        armed = false;
+        lastReceived = System.nanoTime();
+        check = Scheduler.getInstance().getExecutor().scheduleWithFixedDelay(this, CHECK_PERIOD, CHECK_PERIOD,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops watching the link.
+     */
+    synchronized void stop() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long deadline = timeout;
+        if (armed && deadline > 0 && System.nanoTime() - lastReceived > deadline) {
+            stop();
+            Thread thread = new Thread(connection::setLinkLost, "ConnLinkLost");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package controller.connection;
+
+import exception.NetworkConnectionException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-establishes a lost connection to the car. Attempts are spaced by an exponentially growing delay with random
+ * jitter, so that a short outage is bridged within milliseconds while a car that stays unreachable is not flooded
+ * with connection attempts. Attempts continue until a handshake succeeds or the reconnector is cancelled.
+ */
+class Reconnector implements Runnable {
+    private static final long INITIAL_DELAY = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toNanos(2);
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConnController connection;
+    private volatile Thread thread;
+
+    /**
+     * Creates a new Reconnector.
+     * @param connection The controller whose connection is re-established.
+     */
+    Reconnector(ConnController connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Starts reconnecting on a new thread, unless a reconnect is already in progress.
+     */
+    synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "ConnReconnector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops reconnecting. A connection attempt that is currently in progress is not aborted.
+     */
+    synchronized void cancel() {
+        Thread current = thread;
+        thread = null;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    /**
+     * Returns true if a reconnect is in progress.
+     * @return True if the connection is currently being re-established.
+     */
+    boolean isReconnecting() {
+        return thread != null;
+    }
+
+    /**
+     * Wakes up the reconnecting thread, if any, after the handshake succeeded.
+     */
+    void handshakeCompleted() {
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    /**
+     * Returns the delay before the given attempt: exponential in the number of attempts and capped, of which a random
+     * part of up to one half is taken off, so that multiple clients do not retry in lockstep.
+     * @param attempt The number of attempts made before, starting at 0.
+     * @return The delay in nanoseconds.
+     */
+    static long getDelay(int attempt) {
+        long delay = INITIAL_DELAY << Math.min(attempt, 16);
+        delay = Math.min(delay, MAX_DELAY);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Ends the reconnect if the connection is active, in the same step as clearing the thread, so that a disconnect
+     * right after the handshake either finds this thread still reconnecting (which then tries again) or starts a new
+     * one.
+     * @param self The reconnecting thread.
+     * @return True if the connection is re-established and the thread has to end.
+     */
+    private synchronized boolean finish(Thread self) {
+        if (thread == self && connection.isActive()) {
+            thread = null;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        int attempt = 0;
+        while (thread == self) {
+            LockSupport.parkNanos(this, getDelay(attempt++));
+            if (thread != self) {
+                break;
+            }
+            try {
+                connection.reconnect();
+            } catch (NetworkConnectionException e) {
+                continue;
+            }
+            // Wait for the car to answer the handshake before declaring the connection re-established
+            long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT;
+            long remaining;
+            while (!connection.isActive() && thread == self && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (finish(self)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            if (thread == self) {
+                thread = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package controller.connection;
+
+import util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Matches the echoes of stamped commands to the time they were sent, producing a continuous stream of round-trip
+ * times. The send times of the most recent commands are kept in a ring indexed by sequence number; an echo is only
+ * accepted if its timestamp matches the send time recorded for its sequence number, so stale or duplicate echoes are
+ * ignored.
+ */
+class RttTracker {
+    private static final int WINDOW = 1024;
+    private static final int MASK = WINDOW - 1;
+    // Weight of a new sample in the smoothed round-trip time, as a shift (1/8, like TCP's SRTT)
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final AtomicLongArray sentAt;
+    private final LatencyHistogram histogram;
+    private volatile long smoothed;
+    private volatile LatencyHistogram watcher;
+
+    /**
+     * Creates a new RttTracker.
+     */
+    RttTracker() {
+        sentAt = new AtomicLongArray(WINDOW);
+        histogram = new LatencyHistogram();
+    }
+
+    /**
+     * Returns the given System.nanoTime() value as the 32-bit microsecond timestamp sent along with commands.
+     * @param nanos The time in nanoseconds.
+     * @return The timestamp in microseconds, truncated to 32 bits.
+     */
+    static int toTimestamp(long nanos) {
+        return (int) (nanos / 1000);
+    }
+
+    /**
+     * Records that the command with the given sequence number was sent at the given time.
+     * @param sequence The sequence number of the command.
+     * @param nanos The System.nanoTime() at which the command was stamped.
+     */
+    void sent(int sequence, long nanos) {
+        sentAt.set(sequence & MASK, nanos);
+    }
+
+    /**
+     * Matches an echo received from the car to the command it echoes, and records the round-trip time if it matches.
+     * @param sequence The sequence number carried by the echo.
+     * @param timestamp The timestamp carried by the echo, in microseconds.
+     * @param nanos The System.nanoTime() at which the echo was received.
+     */
+    void echoed(int sequence, int timestamp, long nanos) {
+        int slot = sequence & MASK;
+        long sent = sentAt.get(slot);
+        if (sent == 0 || toTimestamp(sent) != timestamp || !sentAt.compareAndSet(slot, sent, 0)) {
+            return;
+        }
+        long rtt = nanos - sent;
+        histogram.record(rtt);
+        LatencyHistogram current = watcher;
+        if (current != null) {
+            current.record(rtt);
+        }
+        long previous = smoothed;
+        smoothed = previous == 0 ? rtt : previous + ((rtt - previous) >> SMOOTHING_SHIFT);
+    }
+
+    /**
+     * Returns the histogram of every round-trip time measured so far.
+     * @return The round-trip time histogram, in nanoseconds.
+     */
+    LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Additionally records every round-trip time measured from now on into the given histogram, such as one covering
+     * only a replay.
+     * @param watcher The histogram to record into as well, or null to stop.
+     */
+    void watch(LatencyHistogram watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * Returns the exponentially smoothed round-trip time.
+     * @return The smoothed round-trip time in nanoseconds, or 0 if none was measured yet.
+     */
+    long getSmoothed() {
+        return smoothed;
+    }
+}
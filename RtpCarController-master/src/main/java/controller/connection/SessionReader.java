@@ -0,0 +1,208 @@
+package controller.connection;
+
+import model.Throttle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the records of a session written by a SessionRecorder, one at a time and in order. Only the segment being read
+ * is mapped into memory, and its pages are loaded on demand, so a session of any length is read in constant memory.
+ * Reading stops at the first empty record of the last segment, which is where the recording ended.
+ */
+public class SessionReader implements Closeable {
+    private static final Throttle[] THROTTLES = Throttle.values();
+
+    private final Path directory;
+    private final String name;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long startMillis;
+    private int position;
+
+    /**
+     * Creates a new SessionReader positioned before the first record of the given session.
+     * @param directory The directory containing the segment files of the session.
+     * @param name The name of the session, which prefixes the names of its segment files.
+     * @throws IOException If the first segment of the session could not be opened or is not a valid segment.
+     */
+    public SessionReader(Path directory, String name) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.segment = map(0);
+        if (segment == null) {
+            throw new IOException("No recording found at " + SessionRecorder.getSegmentPath(directory, name, 0));
+        }
+    }
+
+    /**
+     * Creates a new SessionReader for the session the given segment file belongs to, positioned before the first
+     * record of the session.
+     * @param segment Any segment file of the session, such as "recordings/session-1700000000000-00000.rec".
+     * @return The reader of the session.
+     * @throws IOException If the given path is not a segment file, or the first segment could not be opened.
+     */
+    public static SessionReader open(Path segment) throws IOException {
+        String file = segment.getFileName().toString();
+        int suffix = file.length() - "-00000".length() - SessionRecorder.EXTENSION.length();
+        if (suffix <= 0 || !file.endsWith(SessionRecorder.EXTENSION) || file.charAt(suffix) != '-') {
+            throw new IOException("Not a session segment file: " + segment);
+        }
+        Path directory = segment.toAbsolutePath().getParent();
+        return new SessionReader(directory, file.substring(0, suffix));
+    }
+
+    /**
+     * Maps the segment file with the given index and validates its header.
+     * @param index The index of the segment.
+     * @return The mapped segment positioned at its first record, or null if the session has no such segment.
+     * @throws IOException If the segment could not be mapped or is not a valid segment.
+     */
+    private MappedByteBuffer map(int index) throws IOException {
+        Path path = SessionRecorder.getSegmentPath(directory, name, index);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            if (mapped.limit() < SessionRecorder.HEADER_SIZE || mapped.getInt(0) != SessionRecorder.MAGIC
+                    || mapped.getShort(4) != SessionRecorder.VERSION
+                    || mapped.getShort(6) != SessionRecorder.RECORD_SIZE || mapped.getInt(8) != index) {
+                throw new IOException("Not a valid session segment: " + path);
+            }
+            startMillis = mapped.getLong(12);
+            segmentIndex = index;
+            position = SessionRecorder.HEADER_SIZE - SessionRecorder.RECORD_SIZE;
+            return mapped;
+        }
+    }
+
+    /**
+     * Advances to the next record, moving on to the next segment at the end of the current one.
+     * @return True if there is a next record, false if the end of the session was reached.
+     * @throws IOException If the next segment could not be mapped or is not a valid segment.
+     */
+    public boolean next() throws IOException {
+        while (segment != null) {
+            int next = position + SessionRecorder.RECORD_SIZE;
+            if (next + SessionRecorder.RECORD_SIZE <= segment.limit() && segment.get(next + 8) != 0) {
+                position = next;
+                return true;
+            }
+            segment = map(segmentIndex + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the wall-clock time at which the session started.
+     * @return The start of the session in milliseconds since the epoch.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Returns the time of the current record.
+     * @return The nanoseconds between the start of the session and the current record.
+     */
+    public long getNanos() {
+        return segment.getLong(position);
+    }
+
+    /**
+     * Returns the type of the current record.
+     * @return One of the SessionRecorder.SENT_ or SessionRecorder.RECEIVED_ constants.
+     */
+    public byte getType() {
+        return segment.get(position + 8);
+    }
+
+    /**
+     * Returns the steering angle of a record of a message sent to the car.
+     * @return The steering angle at the time the message was sent.
+     */
+    public int getAngle() {
+        return segment.get(position + 9) & 0xFF;
+    }
+
+    /**
+     * Returns the throttle direction of a record of a message sent to the car.
+     * @return The throttle direction at the time the message was sent.
+     */
+    public Throttle getThrottle() {
+        int ordinal = segment.get(position + 10);
+        return ordinal >= 0 && ordinal < THROTTLES.length ? THROTTLES[ordinal] : Throttle.NEUTRAL;
+    }
+
+    /**
+     * Returns the throttle power of a record of a message sent to the car.
+     * @return The throttle power at the time the message was sent, as a percentage.
+     */
+    public int getPower() {
+        return segment.get(position + 11);
+    }
+
+    /**
+     * Returns the sequence number of a record of a message sent to the car or an echo.
+     * @return The sequence number of the message, or 0 if it has none.
+     */
+    public int getSequence() {
+        return segment.getInt(position + 12);
+    }
+
+    /**
+     * Returns the timestamp of a record of a message sent to the car or an echo.
+     * @return The timestamp of the message in microseconds, or 0 if it has none.
+     */
+    public int getTimestamp() {
+        return segment.getInt(position + 16);
+    }
+
+    /**
+     * Returns the car's timestamp of a telemetry record.
+     * @return The time at which the car took the sample, in microseconds of the car's clock.
+     */
+    public long getCarTimestamp() {
+        return segment.getLong(position + 12);
+    }
+
+    /**
+     * Returns the speed of a telemetry record.
+     * @return The speed of the car in millimetres per second.
+     */
+    public int getSpeed() {
+        return segment.getInt(position + 20);
+    }
+
+    /**
+     * Returns the battery voltage of a telemetry record.
+     * @return The battery voltage in millivolts.
+     */
+    public int getBattery() {
+        return segment.getInt(position + 24);
+    }
+
+    /**
+     * Returns the heading of a telemetry record.
+     * @return The heading of the car in tenths of a degree.
+     */
+    public int getHeading() {
+        return segment.getInt(position + 28);
+    }
+
+    /**
+     * Stops reading. The mapping of the current segment is released once it is garbage collected.
+     */
+    @Override
+    public void close() {
+        segment = null;
+    }
+}
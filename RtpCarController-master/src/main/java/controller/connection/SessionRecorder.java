@@ -0,0 +1,335 @@
+package controller.connection;
+
+import util.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every message sent to and received from the car into memory-mapped, append-only segment files, so that a
+ * session can be reviewed or replayed afterwards. Every message is stored as a fixed-width binary record stamped with
+ * the nanoseconds since the start of the session. Recording a message only stores a few fields into mapped memory, so
+ * it can stay enabled while driving; the next segment is created and mapped on a thread of its own before the current
+ * one is full, so that rolling over does not stall the sending thread either. Should the next segment not be ready when
+ * it is needed, records are dropped (and counted) until it is, rather than waiting for it.
+ *
+ * A session consists of the files "name-00000.rec", "name-00001.rec", and so on. Each segment starts with a header of
+ * SessionRecorder.HEADER_SIZE bytes (magic number, format version, record size, segment index, wall-clock start of the
+ * session in milliseconds), followed by records of SessionRecorder.RECORD_SIZE bytes in big-endian byte order:
+ *
+ * offset 0: nanoseconds since the start of the session (8 bytes), 8: record type (1), 9: steering angle (1),
+ * 10: throttle ordinal (1), 11: throttle power (1), 12: sequence number (4), 16: timestamp in microseconds (4).
+ * Telemetry records instead hold the car's timestamp (8 bytes) at offset 12, followed by the speed, battery voltage
+ * and heading (4 bytes each). Commands sent carry the steering and throttle state at the time they were sent.
+ *
+ * The type of a record is written last, and the unused part of a segment is zero-filled, so a reader stops at the
+ * first record of type 0. Records survive the process crashing, since they are in the page cache once written; they
+ * are only forced to disk when the recorder is closed.
+ */
+public class SessionRecorder implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SessionRecorder.class.getName());
+
+    public static final int MAGIC = 0x52545052; // "RTPR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    public static final String EXTENSION = ".rec";
+
+    // Types of the messages sent to the car; equal to the opcodes of the corresponding binary frames
+    public static final byte SENT_HANDSHAKE = Protocol.OP_HANDSHAKE;
+    public static final byte SENT_HEARTBEAT = Protocol.OP_HEARTBEAT;
+    public static final byte SENT_STEER = Protocol.OP_STEER;
+    public static final byte SENT_THROTTLE = Protocol.OP_THROTTLE;
+    public static final byte SENT_CLOSE = Protocol.OP_CLOSE;
+    public static final byte SENT_BINARY_HANDSHAKE = 6;
+    public static final byte SENT_STAMPED_HANDSHAKE = 7;
+    // Types of the messages received from the car
+    public static final byte RECEIVED_HANDSHAKE = 17;
+    public static final byte RECEIVED_BINARY_OFFER = 18;
+    public static final byte RECEIVED_ECHO = 19;
+    public static final byte RECEIVED_CLOSE = 20;
+    public static final byte RECEIVED_TELEMETRY = 21;
+    public static final byte RECEIVED_STAMP_OFFER = 22;
+
+    private final Path directory;
+    private final String name;
+    private final long segmentSize;
+    private final long startNanos;
+    private final long startMillis;
+    private MappedByteBuffer segment;
+    private Future<MappedByteBuffer> nextSegment;
+    private int segmentIndex;
+    private long records;
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * Creates a new SessionRecorder writing segments of SessionRecorder.DEFAULT_SEGMENT_SIZE bytes, named after the
+     * current time.
+     * @param directory The directory to write the segment files to, which is created if needed.
+     * @throws IOException If the first segment could not be created.
+     */
+    public SessionRecorder(Path directory) throws IOException {
+        this(directory, "session-" + System.currentTimeMillis(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new SessionRecorder and its first segment.
+     * @param directory The directory to write the segment files to, which is created if needed.
+     * @param name The name of the session, which prefixes the names of the segment files.
+     * @param segmentSize The size in bytes of each segment file, after which a new segment is started.
+     * @throws IOException If the first segment could not be created.
+     */
+    public SessionRecorder(Path directory, String name, long segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        this.segment = map(0);
+    }
+
+    /**
+     * Returns the path of the segment file with the given index of a session.
+     * @param directory The directory containing the segment files.
+     * @param name The name of the session.
+     * @param index The index of the segment, starting at 0.
+     * @return The path of the segment file.
+     */
+    public static Path getSegmentPath(Path directory, String name, int index) {
+        return directory.resolve(String.format("%s-%05d%s", name, index, EXTENSION));
+    }
+
+    /**
+     * Returns the record type of the given control message sent to the car.
+     * @param message The control message, being Protocol.HANDSHAKE, Protocol.BINARY_HANDSHAKE,
+     *                Protocol.STAMPED_HANDSHAKE, Protocol.HEARTBEAT or Protocol.CLOSE_CONNECTION.
+     * @return The type of the record (one of the SessionRecorder.SENT_ constants).
+     */
+    static byte getSentType(String message) {
+        switch (message) {
+            case Protocol.BINARY_HANDSHAKE: return SENT_BINARY_HANDSHAKE;
+            case Protocol.STAMPED_HANDSHAKE: return SENT_STAMPED_HANDSHAKE;
+            default: return Protocol.getOpcode(message);
+        }
+    }
+
+    /**
+     * Returns the number of records written so far.
+     * @return The number of records in all segments of this session.
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Returns the number of records dropped because the next segment was not ready yet when the current one was full.
+     * @return The number of records dropped so far.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Records a message sent to the car.
+     * @param type The type of the message (one of the SessionRecorder.SENT_ constants).
+     * @param angle The current steering angle.
+     * @param throttle The ordinal of the current throttle direction.
+     * @param power The current throttle power.
+     * @param sequence The sequence number of the message, or 0 if it has none.
+     * @param timestamp The timestamp of the message in microseconds, or 0 if it has none.
+     */
+    synchronized void sent(byte type, int angle, int throttle, int power, int sequence, int timestamp) {
+        int position = claim();
+        if (position >= 0) {
+            segment.put(position + 9, (byte) angle)
+                    .put(position + 10, (byte) throttle)
+                    .put(position + 11, (byte) power)
+                    .putInt(position + 12, sequence)
+                    .putInt(position + 16, timestamp);
+            commit(position, type);
+        }
+    }
+
+    /**
+     * Records a message without arguments, or an echo, received from the car.
+     * @param type The type of the message (one of the SessionRecorder.RECEIVED_ constants).
+     * @param sequence The sequence number carried by the echo, or 0 if the message is not an echo.
+     * @param timestamp The timestamp carried by the echo, or 0 if the message is not an echo.
+     */
+    synchronized void received(byte type, int sequence, int timestamp) {
+        int position = claim();
+        if (position >= 0) {
+            segment.putInt(position + 12, sequence)
+                    .putInt(position + 16, timestamp);
+            commit(position, type);
+        }
+    }
+
+    /**
+     * Records a telemetry sample received from the car.
+     * @param timestamp The time at which the car took the sample, in microseconds of the car's clock.
+     * @param speed The speed of the car in millimetres per second.
+     * @param battery The battery voltage in millivolts.
+     * @param heading The heading of the car in tenths of a degree.
+     */
+    synchronized void receivedTelemetry(long timestamp, int speed, int battery, int heading) {
+        int position = claim();
+        if (position >= 0) {
+            segment.putLong(position + 12, timestamp)
+                    .putInt(position + 20, speed)
+                    .putInt(position + 24, battery)
+                    .putInt(position + 28, heading);
+            commit(position, RECEIVED_TELEMETRY);
+        }
+    }
+
+    /**
+     * Returns the position of the next record in the current segment, rolling over to a new segment if the current
+     * one is full.
+     * @return The position of the next record, or -1 if this recorder is closed or failed.
+     */
+    private int claim() {
+        if (segment == null) {
+            return -1;
+        }
+        int position = segment.position();
+        if (position + RECORD_SIZE > segment.limit()) {
+            if (!roll()) {
+                if (segment != null) {
+                    dropped++;
+                }
+                return -1;
+            }
+            position = segment.position();
+        } else if (nextSegment == null && position > segment.limit() / 2) {
+            // Prepare the next segment in the background, well before it is needed
+            prepareNext();
+        }
+        segment.putLong(position, System.nanoTime() - startNanos);
+        return position;
+    }
+
+    /**
+     * Completes the record at the given position by writing its type, and advances to the next record.
+     */
+    private void commit(int position, byte type) {
+        segment.put(position + 8, type);
+        segment.position(position + RECORD_SIZE);
+        records++;
+    }
+
+    /**
+     * Starts creating and mapping the next segment on a new thread, since that may block on the file system.
+     */
+    private void prepareNext() {
+        int index = segmentIndex + 1;
+        FutureTask<MappedByteBuffer> task = new FutureTask<>(() -> map(index));
+        Thread thread = new Thread(task, "SessionRecorder");
+        thread.setDaemon(true);
+        thread.start();
+        nextSegment = task;
+    }
+
+    /**
+     * Switches to the next segment if it was mapped in the background, without waiting for it. If no segment can be
+     * created, recording stops.
+     * @return True if a new segment is available, false if it is not ready yet or recording stopped.
+     */
+    private boolean roll() {
+        if (nextSegment == null) {
+            prepareNext();
+        }
+        if (!nextSegment.isDone()) {
+            return false;
+        }
+        try {
+            // Does not block, since the mapping is done
+            segment = nextSegment.get();
+            segmentIndex++;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Stopped recording session " + name, e.getCause());
+            segment = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            segment = null;
+        }
+        nextSegment = null;
+        return segment != null;
+    }
+
+    /**
+     * Creates the segment file with the given index, maps it into memory and writes its header.
+     * @param index The index of the segment.
+     * @return The mapped segment, positioned at its first record.
+     * @throws IOException If the segment file could not be created or mapped.
+     */
+    private MappedByteBuffer map(int index) throws IOException {
+        Path path = getSegmentPath(directory, name, index);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            mapped.putInt(MAGIC)
+                    .putShort((short) VERSION)
+                    .putShort((short) RECORD_SIZE)
+                    .putInt(index)
+                    .putLong(startMillis);
+            mapped.limit(HEADER_SIZE + (int) ((segmentSize - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE);
+            mapped.position(HEADER_SIZE);
+            return mapped;
+        }
+    }
+
+    /**
+     * Stops recording and forces the current segment to disk. A segment that was prepared but not used is deleted.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+        if (nextSegment != null) {
+            deleteUnused(nextSegment, getSegmentPath(directory, name, segmentIndex + 1));
+            nextSegment = null;
+        }
+    }
+
+    /**
+     * Deletes a segment that was prepared but never used, once its mapping is done. Nothing is deleted if the mapping
+     * failed, since the file might then not have been created by this recorder.
+     */
+    private static void deleteUnused(Future<MappedByteBuffer> prepared, Path path) {
+        try {
+            prepared.get();
+            Files.delete(path);
+        } catch (ExecutionException e) {
+            // No segment was created
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete unused segment " + path, e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package controller.connection;
+
+import model.Car;
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the steering and throttle commands of a recorded session by driving a Car, so that they travel through the
+ * normal ConnController path (input governor, output queue, encoding and transport) to the TestServer or a real car.
+ * Commands are replayed at the recorded pace, a multiple of it, or as fast as possible. The session is streamed from
+ * its segment files, so replaying takes constant memory regardless of the length of the session.
+ *
+ * While replaying, the echoes and round-trip times observed on the connection are compared with those in the
+ * recording, and the timing of the replay itself is measured, which makes a replay usable as a regression and
+ * throughput test for protocol changes.
+ */
+public class SessionReplayer {
+    /** Replay speed at which commands are replayed without waiting in between. */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    private static final int WINDOW = 1024;
+    private static final int MASK = WINDOW - 1;
+    private static final long DRAIN_TIME = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final ConnController connection;
+    private final Car car;
+    private volatile double speed;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new SessionReplayer driving the given Car in real time.
+     * @param car The Car to replay the commands on, which is registered with the ConnController.
+     */
+    public SessionReplayer(Car car) {
+        this.connection = ConnController.getInstance();
+        this.car = car;
+        this.speed = 1;
+    }
+
+    /**
+     * Sets the pace of the replay relative to the recording. Takes effect on the next command.
+     * @param speed 1 to replay in real time, a higher value to replay that many times faster, or
+     *              SessionReplayer.AS_FAST_AS_POSSIBLE to replay without waiting.
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Replay speed must be positive: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Stops a replay in progress after the current command.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Replays every steering and throttle command of the given session on the calling thread, and waits briefly for
+     * the last echoes to arrive. The connection has to be established before.
+     * @param reader The reader of the session, positioned before the first record to replay.
+     * @return The comparison between the recording and the replay.
+     * @throws IOException If reading the session failed.
+     */
+    public Report replay(SessionReader reader) throws IOException {
+        cancelled = false;
+        Report report = new Report();
+        // Send times and timestamps of the recorded commands, indexed by sequence number, to match recorded echoes
+        long[] sentAt = new long[WINDOW];
+        int[] sentStamp = new int[WINDOW];
+        long sentBefore = connection.getMetrics().getCommandsSent();
+        long first = -1;
+        long last = 0;
+        long start = System.nanoTime();
+        connection.getRttTracker().watch(report.observedRtt);
+        try {
+            while (!cancelled && reader.next()) {
+                byte type = reader.getType();
+                long nanos = reader.getNanos();
+                if (type == SessionRecorder.RECEIVED_ECHO) {
+                    int slot = reader.getSequence() & MASK;
+                    if (sentAt[slot] != 0 && sentStamp[slot] == reader.getTimestamp()) {
+                        report.recordedRtt.record(nanos - sentAt[slot]);
+                        sentAt[slot] = 0;
+                    }
+                    continue;
+                }
+                if (type == SessionRecorder.SENT_HEARTBEAT || type == SessionRecorder.SENT_STEER
+                        || type == SessionRecorder.SENT_THROTTLE) {
+                    int slot = reader.getSequence() & MASK;
+                    sentAt[slot] = nanos;
+                    sentStamp[slot] = reader.getTimestamp();
+                }
+                if (type != SessionRecorder.SENT_STEER && type != SessionRecorder.SENT_THROTTLE) {
+                    continue;
+                }
+                if (first < 0) {
+                    first = nanos;
+                    start = System.nanoTime();
+                }
+                last = nanos;
+                report.lateness.record(awaitReplayTime(start, nanos - first));
+                if (type == SessionRecorder.SENT_STEER) {
+                    car.steer(reader.getAngle());
+                } else {
+                    car.throttle(reader.getThrottle(), reader.getPower());
+                }
+                report.recordedCommands++;
+            }
+            report.replayNanos = System.nanoTime() - start;
+            // Give the echoes of the last commands time to arrive
+            LockSupport.parkNanos(this, DRAIN_TIME + 2 * connection.getSmoothedRtt());
+        } finally {
+            connection.getRttTracker().watch(null);
+        }
+        report.recordedNanos = first < 0 ? 0 : last - first;
+        report.sentCommands = connection.getMetrics().getCommandsSent() - sentBefore;
+        return report;
+    }
+
+    /**
+     * Waits until the given offset from the start of the replay, scaled by the replay speed, has passed.
+     * @param start The System.nanoTime() at which the replay started.
+     * @param offset The time between the first command and the command to replay, in the recording.
+     * @return How late the command is replayed, in nanoseconds.
+     */
+    private long awaitReplayTime(long start, long offset) {
+        double current = speed;
+        if (current == AS_FAST_AS_POSSIBLE) {
+            return 0;
+        }
+        long due = start + (long) (offset / current);
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0 && !cancelled) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        return Math.max(0, -remaining);
+    }
+
+    /**
+     * The comparison between a recorded session and its replay. The number of commands sent can be lower than the
+     * number recorded, since the car does not send values that did not change and the input governor and output queue
+     * coalesce commands that are replayed faster than they can be sent.
+     */
+    public static class Report {
+        private final LatencyHistogram recordedRtt = new LatencyHistogram();
+        private final LatencyHistogram observedRtt = new LatencyHistogram();
+        private final LatencyHistogram lateness = new LatencyHistogram();
+        private long recordedCommands;
+        private long sentCommands;
+        private long recordedNanos;
+        private long replayNanos;
+
+        /**
+         * Returns the round-trip times measured from the echoes in the recording.
+         * @return The recorded round-trip time histogram, in nanoseconds.
+         */
+        public LatencyHistogram getRecordedRtt() {
+            return recordedRtt;
+        }
+
+        /**
+         * Returns the round-trip times measured from the echoes received while replaying.
+         * @return The observed round-trip time histogram, in nanoseconds.
+         */
+        public LatencyHistogram getObservedRtt() {
+            return observedRtt;
+        }
+
+        /**
+         * Returns how late the commands were replayed relative to the recorded pace.
+         * @return The histogram of the replay lateness, in nanoseconds.
+         */
+        public LatencyHistogram getLateness() {
+            return lateness;
+        }
+
+        public long getRecordedCommands() {
+            return recordedCommands;
+        }
+
+        public long getSentCommands() {
+            return sentCommands;
+        }
+
+        public long getRecordedNanos() {
+            return recordedNanos;
+        }
+
+        public long getReplayNanos() {
+            return replayNanos;
+        }
+
+        /**
+         * Returns a multi-line text report of the comparison.
+         * @return The comparison between the recording and the replay.
+         */
+        @Override
+        public String toString() {
+            return "commands: recorded=" + recordedCommands + " sent=" + sentCommands + '\n'
+                    + "echoes: recorded=" + recordedRtt.getCount() + " observed=" + observedRtt.getCount() + '\n'
+                    + "recorded rtt: " + recordedRtt + '\n'
+                    + "observed rtt: " + observedRtt + '\n'
+                    + "duration: recorded=" + TimeUnit.NANOSECONDS.toMillis(recordedNanos) + "ms replayed="
+                    + TimeUnit.NANOSECONDS.toMillis(replayNanos) + "ms lateness " + lateness;
+        }
+    }
+}
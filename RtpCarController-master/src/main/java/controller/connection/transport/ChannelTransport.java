@@ -0,0 +1,52 @@
+package controller.connection.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport sending all bytes over a blocking NIO SocketChannel, so that buffers are handed to the kernel without
+ * being copied through java.io streams.
+ */
+public class ChannelTransport implements Transport {
+    private SocketChannel channel;
+    private boolean noDelay;
+
+    @Override
+    public void setTcpNoDelay(boolean noDelay) {
+        this.noDelay = noDelay;
+    }
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+    }
+
+    @Override
+    public ReadableByteChannel getInbound() {
+        return channel;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package controller.connection.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Transport combining a reliable TCP connection with a UDP channel to the same address and port. Latency-critical
+ * frames are sent as datagrams, so that a lost packet does not block the frames after it.
+ */
+public class DatagramTransport implements Transport {
+    private final SocketTransport stream;
+    private DatagramChannel datagram;
+
+    /**
+     * Creates a new DatagramTransport.
+     */
+    public DatagramTransport() {
+        stream = new SocketTransport();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean noDelay) {
+        stream.setTcpNoDelay(noDelay);
+    }
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        stream.connect(address);
+        datagram = DatagramChannel.open();
+        datagram.connect(stream.getRemoteAddress());
+    }
+
+    @Override
+    public ReadableByteChannel getInbound() {
+        return stream.getInbound();
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        stream.write(buffer);
+    }
+
+    @Override
+    public boolean supportsDatagrams() {
+        return true;
+    }
+
+    @Override
+    public void sendDatagram(ByteBuffer buffer) throws IOException {
+        datagram.write(buffer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return stream.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stream.close();
+        } finally {
+            if (datagram != null) {
+                datagram.close();
+            }
+        }
+    }
+}
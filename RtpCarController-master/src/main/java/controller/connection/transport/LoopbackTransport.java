@@ -0,0 +1,89 @@
+package controller.connection.transport;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport connecting to a server in the same JVM through a pair of pipes, bypassing the network stack entirely.
+ * Servers register themselves under a port number with bind; the host part of the connect address is ignored.
+ */
+public class LoopbackTransport implements Transport {
+    private static final Map<Integer, Server> SERVERS = new ConcurrentHashMap<>();
+
+    private Pipe.SourceChannel inbound;
+    private Pipe.SinkChannel outbound;
+
+    /**
+     * An in-process server accepting loopback connections.
+     */
+    public interface Server {
+        /**
+         * Accepts a new loopback connection. Must not block; the connection should be served on another thread.
+         * @param input The channel from which the bytes sent by the client can be read.
+         * @param output The channel to which the bytes for the client can be written.
+         */
+        void accept(ReadableByteChannel input, WritableByteChannel output);
+    }
+
+    /**
+     * Registers the given server under the given port number, replacing any server bound to it before.
+     * @param port The port number under which the server can be reached.
+     * @param server The server accepting connections to the port.
+     */
+    public static void bind(int port, Server server) {
+        SERVERS.put(port, server);
+    }
+
+    /**
+     * Removes the server registered under the given port number, if any.
+     * @param port The port number to unbind.
+     */
+    public static void unbind(int port) {
+        SERVERS.remove(port);
+    }
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        Server server = SERVERS.get(address.getPort());
+        if (server == null) {
+            throw new ConnectException("No loopback server bound to port " + address.getPort());
+        }
+        Pipe toServer = Pipe.open();
+        Pipe toClient = Pipe.open();
+        inbound = toClient.source();
+        outbound = toServer.sink();
+        server.accept(toServer.source(), toClient.sink());
+    }
+
+    @Override
+    public ReadableByteChannel getInbound() {
+        return inbound;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            outbound.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return outbound != null && outbound.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (outbound != null) {
+            outbound.close();
+            inbound.close();
+        }
+    }
+}
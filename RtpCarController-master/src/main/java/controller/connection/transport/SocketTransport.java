@@ -0,0 +1,86 @@
+package controller.connection.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Transport sending all bytes over a blocking java.net.Socket TCP connection.
+ */
+public class SocketTransport implements Transport {
+    private static final int COPY_SIZE = 8192;
+
+    private Socket socket;
+    private OutputStream output;
+    private ReadableByteChannel inbound;
+    private boolean noDelay;
+    // Buffer to copy the bytes of buffers without an accessible array (such as direct buffers) through
+    private byte[] copy;
+
+    @Override
+    public void setTcpNoDelay(boolean noDelay) {
+        this.noDelay = noDelay;
+    }
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        socket = new Socket(address.getAddress(), address.getPort());
+        socket.setTcpNoDelay(noDelay);
+        output = socket.getOutputStream();
+        inbound = Channels.newChannel(socket.getInputStream());
+    }
+
+    @Override
+    public ReadableByteChannel getInbound() {
+        return inbound;
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else {
+            writeCopy(buffer);
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer by copying them through a reusable array, in chunks of at most
+     * COPY_SIZE bytes.
+     */
+    private synchronized void writeCopy(ByteBuffer buffer) throws IOException {
+        if (copy == null) {
+            copy = new byte[COPY_SIZE];
+        }
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), copy.length);
+            buffer.get(copy, 0, length);
+            output.write(copy, 0, length);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket != null && !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Returns the address of the car this transport is connected to.
+     * @return The remote address of the underlying socket.
+     */
+    InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) socket.getRemoteSocketAddress();
+    }
+}
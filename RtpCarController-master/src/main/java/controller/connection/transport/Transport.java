@@ -0,0 +1,68 @@
+package controller.connection.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A bidirectional byte link between this client and a remote car. Implementations decide how the bytes travel (a TCP
+ * socket, an NIO channel, datagrams or an in-process pipe), so that the connection controllers do not depend on the
+ * network stack.
+ */
+public interface Transport extends Closeable {
+    /**
+     * Opens the link to the car at the given address. Blocks until the link is established.
+     * @param address The address of the car.
+     * @throws IOException If the link could not be established.
+     */
+    void connect(InetSocketAddress address) throws IOException;
+
+    /**
+     * Returns the channel from which the bytes sent by the car can be read. Reads block until data is available and
+     * return -1 once the car closed the link.
+     * @return The inbound channel of this link.
+     */
+    ReadableByteChannel getInbound();
+
+    /**
+     * Reliably sends all remaining bytes of the given buffer to the car, in order.
+     * @param buffer The bytes to send.
+     * @throws IOException If the bytes could not be sent.
+     */
+    void write(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Sets whether the reliable stream sends every write right away (TCP_NODELAY) instead of holding back small writes
+     * until earlier ones are acknowledged (Nagle's algorithm). Takes effect on the next connect. Transports that do not
+     * use TCP ignore this setting.
+     * @param noDelay True to disable Nagle's algorithm.
+     */
+    default void setTcpNoDelay(boolean noDelay) {
+    }
+
+    /**
+     * Returns whether this transport can send unreliable datagrams besides the reliable stream.
+     * @return True if sendDatagram sends a separate datagram rather than writing to the reliable stream.
+     */
+    default boolean supportsDatagrams() {
+        return false;
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer to the car as a single datagram, which may be lost or reordered.
+     * Transports that do not support datagrams write the bytes to the reliable stream instead.
+     * @param buffer The bytes to send.
+     * @throws IOException If the bytes could not be sent.
+     */
+    default void sendDatagram(ByteBuffer buffer) throws IOException {
+        write(buffer);
+    }
+
+    /**
+     * Returns true if this link is connected and not yet closed.
+     * @return True if this link is open.
+     */
+    boolean isOpen();
+}
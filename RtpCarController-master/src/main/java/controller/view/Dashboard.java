@@ -0,0 +1,305 @@
+package controller.view;
+
+import controller.connection.ConnController;
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.paint.Color;
+import model.Car;
+import model.CarState;
+import model.TelemetryBuffer;
+import model.Throttle;
+import util.Downsampler;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live view of the link and the car: the current steering and throttle state, the round-trip time, the command rate
+ * and charts of the speed, battery voltage and round-trip time. The dashboard is driven by the JavaFX pulse: once per
+ * frame it reads a snapshot of the car state, the connection and the telemetry received since the previous frame,
+ * instead of every update posting its own task to the FX thread. Labels are only touched when their value changed,
+ * and the charts are redrawn a few times per second from a downsampled copy of the full history, so that drawing
+ * takes the same time after hours of data as after seconds.
+ */
+class Dashboard extends AnimationTimer {
+    private static final long CHART_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RTT_SAMPLE_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RATE_PERIOD = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_PLOT_POINTS = 2048;
+    private static final String ACTIVE_STYLE = "-fx-base: #8bc34a;";
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double MICROS_PER_SECOND = TimeUnit.SECONDS.toMicros(1);
+
+    private final Car car;
+    private final ConnController connection;
+    private final TelemetryBuffer.Snapshot telemetry;
+    private final Series speedHistory;
+    private final Series batteryHistory;
+    private final Series rttHistory;
+    // Reused for every chart, so that drawing does not allocate
+    private final double[] plotX;
+    private final double[] plotY;
+    private final long started;
+
+    private Label linkLabel;
+    private Label steerLabel;
+    private Label throttleLabel;
+    private Label rttLabel;
+    private Label rateLabel;
+    private Label speedLabel;
+    private Label batteryLabel;
+    private Label headingLabel;
+    private Canvas speedChart;
+    private Canvas batteryChart;
+    private Canvas rttChart;
+    private Button leftButton;
+    private Button forwardButton;
+    private Button rightButton;
+    private Button reverseButton;
+
+    // Last values shown, so that unchanged labels are not updated
+    private long shownState = -1;
+    private int shownLink = -1;
+    private long shownRtt = -1;
+    private long shownRate = -1;
+    private long telemetryNext;
+    private long lastChart;
+    private long lastRttSample;
+    private long lastRate;
+    private long lastSent;
+    private boolean historyChanged;
+
+    /**
+     * Creates a new Dashboard, which is not yet started.
+     * @param car The car whose state and telemetry are shown.
+     * @param connection The connection whose state and metrics are shown.
+     */
+    Dashboard(Car car, ConnController connection) {
+        this.car = car;
+        this.connection = connection;
+        this.telemetry = new TelemetryBuffer.Snapshot(256);
+        this.speedHistory = new Series();
+        this.batteryHistory = new Series();
+        this.rttHistory = new Series();
+        this.plotX = new double[MAX_PLOT_POINTS];
+        this.plotY = new double[MAX_PLOT_POINTS];
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * Sets the labels showing the current values.
+     */
+    void setLabels(Label link, Label steer, Label throttle, Label rtt, Label rate, Label speed, Label battery,
+                   Label heading) {
+        this.linkLabel = link;
+        this.steerLabel = steer;
+        this.throttleLabel = throttle;
+        this.rttLabel = rtt;
+        this.rateLabel = rate;
+        this.speedLabel = speed;
+        this.batteryLabel = battery;
+        this.headingLabel = heading;
+    }
+
+    /**
+     * Sets the canvases the history charts are drawn on.
+     */
+    void setCharts(Canvas speed, Canvas battery, Canvas rtt) {
+        this.speedChart = speed;
+        this.batteryChart = battery;
+        this.rttChart = rtt;
+    }
+
+    /**
+     * Sets the driving buttons, which are highlighted while the car drives or steers in their direction.
+     */
+    void setButtons(Button left, Button forward, Button right, Button reverse) {
+        this.leftButton = left;
+        this.forwardButton = forward;
+        this.rightButton = right;
+        this.reverseButton = reverse;
+    }
+
+    @Override
+    public void handle(long now) {
+        showCarState();
+        showLink();
+        sampleRtt(now);
+        sampleRate(now);
+        readTelemetry();
+        if (historyChanged && now - lastChart >= CHART_PERIOD) {
+            lastChart = now;
+            historyChanged = false;
+            drawChart(speedChart, speedHistory, Color.STEELBLUE, "Speed (mm/s)");
+            drawChart(batteryChart, batteryHistory, Color.DARKORANGE, "Battery (mV)");
+            drawChart(rttChart, rttHistory, Color.SEAGREEN, "RTT (ms)");
+        }
+    }
+
+    /**
+     * Shows the steering and throttle state of the car and highlights the matching buttons.
+     */
+    private void showCarState() {
+        long state = car.getState();
+        if (state == shownState) {
+            return;
+        }
+        shownState = state;
+        int steer = CarState.getSteer(state);
+        Throttle throttle = CarState.getThrottle(state);
+        steerLabel.setText("Steer: " + steer + "\u00B0");
+        throttleLabel.setText("Throttle: " + throttle
+                + (throttle == Throttle.NEUTRAL ? "" : " " + CarState.getPower(state) + "%"));
+        highlight(leftButton, steer < 90);
+        highlight(rightButton, steer > 90);
+        highlight(forwardButton, throttle == Throttle.FORWARD);
+        highlight(reverseButton, throttle == Throttle.REVERSE);
+    }
+
+    private static void highlight(Button button, boolean active) {
+        button.setStyle(active ? ACTIVE_STYLE : "");
+    }
+
+    /**
+     * Shows whether the link is up, being re-established, or down.
+     */
+    private void showLink() {
+        int link = connection.isActive() ? 2 : connection.isReconnecting() ? 1 : 0;
+        if (link != shownLink) {
+            shownLink = link;
+            linkLabel.setText(link == 2 ? "Link: connected" : link == 1 ? "Link: reconnecting" : "Link: disconnected");
+        }
+    }
+
+    /**
+     * Shows the smoothed round-trip time, and adds it to the history at a fixed period.
+     */
+    private void sampleRtt(long now) {
+        long rtt = connection.getSmoothedRtt();
+        // Shown with a resolution of 0.1 ms
+        long shown = rtt / 100_000;
+        if (shown != shownRtt) {
+            shownRtt = shown;
+            rttLabel.setText("RTT: " + shown / 10 + "." + shown % 10 + " ms");
+        }
+        if (rtt > 0 && now - lastRttSample >= RTT_SAMPLE_PERIOD) {
+            lastRttSample = now;
+            rttHistory.add((now - started) / NANOS_PER_SECOND, rtt / 1e6);
+            historyChanged = true;
+        }
+    }
+
+    /**
+     * Shows the number of commands sent per second, averaged over the last rate period.
+     */
+    private void sampleRate(long now) {
+        if (now - lastRate < RATE_PERIOD) {
+            return;
+        }
+        long sent = connection.getMetrics().getCommandsSent();
+        if (lastRate != 0) {
+            long rate = Math.round((sent - lastSent) * NANOS_PER_SECOND / (now - lastRate));
+            if (rate != shownRate) {
+                shownRate = rate;
+                rateLabel.setText("Send rate: " + rate + "/s");
+            }
+        }
+        lastRate = now;
+        lastSent = sent;
+    }
+
+    /**
+     * Adds the telemetry received since the previous frame to the history, and shows the latest sample.
+     */
+    private void readTelemetry() {
+        TelemetryBuffer buffer = car.getTelemetry();
+        int read;
+        while ((read = buffer.read(telemetryNext, telemetry)) > 0) {
+            for (int i = 0; i < read; i++) {
+                double seconds = telemetry.getTimestamp(i) / MICROS_PER_SECOND;
+                speedHistory.add(seconds, telemetry.getSpeed(i));
+                batteryHistory.add(seconds, telemetry.getBattery(i));
+            }
+            telemetryNext = telemetry.getNext();
+            historyChanged = true;
+            if (telemetryNext == buffer.getCount()) {
+                // Caught up: show the latest sample while it is still in the snapshot
+                speedLabel.setText("Speed: " + telemetry.getSpeed(read - 1) + " mm/s");
+                batteryLabel.setText("Battery: " + telemetry.getBattery(read - 1) + " mV");
+                int heading = telemetry.getHeading(read - 1);
+                headingLabel.setText("Heading: " + heading / 10 + "." + heading % 10 + "\u00B0");
+            }
+        }
+    }
+
+    /**
+     * Draws the given history on the given canvas, downsampled to at most one point per pixel column.
+     */
+    private void drawChart(Canvas canvas, Series series, Color color, String title) {
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        double width = canvas.getWidth();
+        double height = canvas.getHeight();
+        g.clearRect(0, 0, width, height);
+        g.setStroke(Color.LIGHTGRAY);
+        g.strokeRect(0.5, 0.5, width - 1, height - 1);
+        int count = Downsampler.lttb(series.x, series.y, series.length, plotX, plotY,
+                Math.min(MAX_PLOT_POINTS, (int) width));
+        if (count == 0) {
+            return;
+        }
+        double minY = plotY[0];
+        double maxY = plotY[0];
+        for (int i = 1; i < count; i++) {
+            minY = Math.min(minY, plotY[i]);
+            maxY = Math.max(maxY, plotY[i]);
+        }
+        double minX = plotX[0];
+        double rangeX = Math.max(plotX[count - 1] - minX, 1e-9);
+        double rangeY = Math.max(maxY - minY, 1e-9);
+        // Leave room for the title at the top
+        double top = 16;
+        for (int i = 0; i < count; i++) {
+            plotX[i] = 1 + (plotX[i] - minX) / rangeX * (width - 2);
+            plotY[i] = height - 2 - (plotY[i] - minY) / rangeY * (height - top - 4);
+        }
+        g.setStroke(color);
+        g.strokePolyline(plotX, plotY, count);
+        g.setFill(Color.DIMGRAY);
+        g.fillText(title + "  " + Math.round(minY) + " .. " + Math.round(maxY), 4, 12);
+    }
+
+    /**
+     * Growable history of (x, y) samples in primitive arrays. Once the history reaches its maximum size, every other
+     * sample is dropped, halving its resolution rather than its time span.
+     */
+    private static class Series {
+        private static final int INITIAL_CAPACITY = 1024;
+        // Far more samples than a chart ever draws (MAX_PLOT_POINTS), at 1 MB per series
+        private static final int MAX_CAPACITY = 1 << 16;
+
+        private double[] x = new double[INITIAL_CAPACITY];
+        private double[] y = new double[INITIAL_CAPACITY];
+        private int length;
+
+        void add(double sampleX, double sampleY) {
+            if (length == x.length) {
+                if (length < MAX_CAPACITY) {
+                    x = Arrays.copyOf(x, length * 2);
+                    y = Arrays.copyOf(y, length * 2);
+                } else {
+                    for (int i = 0; i < length / 2; i++) {
+                        x[i] = x[2 * i + 1];
+                        y[i] = y[2 * i + 1];
+                    }
+                    length /= 2;
+                }
+            }
+            x[length] = sampleX;
+            y[length] = sampleY;
+            length++;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package controller.view;
 
 import controller.DrivingController;
+import controller.InputSampler;
 import controller.connection.ConnController;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -8,7 +9,9 @@ import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.AnchorPane;
 import javafx.stage.Modality;
@@ -16,15 +19,25 @@ import javafx.stage.Stage;
 import model.Car;
 import model.Steer;
 import model.Throttle;
+import util.Protocol;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class HomeController implements Initializable {
+    // Distance in pixels a mouse drag has to cover for full steering or full throttle power
+    private static final double DRAG_RANGE = 200;
+    // Vertical distance in pixels a mouse drag has to cover before it throttles
+    private static final double DRAG_DEAD_ZONE = 10;
+    // Number of times per second the keyboard and mouse state is turned into driving commands
+    private static final int SAMPLE_RATE = 100;
+    private static final long RELEASED = 0;
+
     @FXML
     private AnchorPane rootAP;
     @FXML
@@ -35,13 +48,45 @@ public class HomeController implements Initializable {
     private Button rightButton;
     @FXML
     private Button reverseButton;
+    @FXML
+    private Label linkLabel;
+    @FXML
+    private Label steerLabel;
+    @FXML
+    private Label throttleLabel;
+    @FXML
+    private Label rttLabel;
+    @FXML
+    private Label rateLabel;
+    @FXML
+    private Label speedLabel;
+    @FXML
+    private Label batteryLabel;
+    @FXML
+    private Label headingLabel;
+    @FXML
+    private Canvas speedChart;
+    @FXML
+    private Canvas batteryChart;
+    @FXML
+    private Canvas rttChart;
 
     private Scene scene;
     private Stage stage;
     private Logger logger;
     private ConnController connController;
     private DrivingController drivingController;
-    private HashMap<KeyCode, Boolean> keyPressed;
+    private InputSampler inputSampler;
+    private Dashboard dashboard;
+    // The order in which the driving keys were pressed (the most recent has the highest value), or RELEASED
+    private ConcurrentHashMap<KeyCode, Long> keyPressed;
+    private AtomicLong keyPresses;
+    private double dragStartX;
+    private double dragStartY;
+    private volatile boolean dragging;
+    private volatile int dragAngle;
+    private volatile Throttle dragThrottle;
+    private volatile int dragPower;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -54,11 +99,18 @@ public class HomeController implements Initializable {
         drivingController = DrivingController.getInstance();
         drivingController.registerCar(car);
 
-        keyPressed = new HashMap<>();
-        keyPressed.put(KeyCode.UP, false);
-        keyPressed.put(KeyCode.DOWN, false);
-        keyPressed.put(KeyCode.LEFT, false);
-        keyPressed.put(KeyCode.RIGHT, false);
+        keyPressed = new ConcurrentHashMap<>();
+        keyPressed.put(KeyCode.UP, RELEASED);
+        keyPressed.put(KeyCode.DOWN, RELEASED);
+        keyPressed.put(KeyCode.LEFT, RELEASED);
+        keyPressed.put(KeyCode.RIGHT, RELEASED);
+        keyPresses = new AtomicLong();
+        inputSampler = new InputSampler(this::sampleInput, SAMPLE_RATE);
+        dashboard = new Dashboard(car, connController);
+        dashboard.setLabels(linkLabel, steerLabel, throttleLabel, rttLabel, rateLabel, speedLabel, batteryLabel,
+                headingLabel);
+        dashboard.setCharts(speedChart, batteryChart, rttChart);
+        dashboard.setButtons(leftButton, forwardButton, rightButton, reverseButton);
 
         Platform.runLater(() -> {
             scene = rootAP.getScene();
@@ -69,6 +121,8 @@ public class HomeController implements Initializable {
 
             if (connController.isActive()) {
                 setKeyboardHandlers();
+                inputSampler.start();
+                dashboard.start();
             } else {
                 stage.close();
             }
@@ -93,24 +147,6 @@ public class HomeController implements Initializable {
         }
     }
 
-    /**
-     * Returns whether the given KeyCode is a key that belongs to a steer function of the Car.
-     * @param key The KeyCode to check.
-     * @return True if the given KeyCode belongs to a steer function of the Car.
-     */
-    private boolean isSteerKey(KeyCode key) {
-        return key == KeyCode.LEFT || key == KeyCode.RIGHT;
-    }
-
-    /**
-     * Returns whether the given KeyCode is a key that belongs to a throttle function of the Car.
-     * @param key The KeyCode to check.
-     * @return True if the given KeyCode belongs to a throttle function of the Car.
-     */
-    private boolean isThrottleKey(KeyCode key) {
-        return key == KeyCode.UP || key == KeyCode.DOWN;
-    }
-
     /**
      * Returns the Throttle that corresponds to the given KeyCode.
      * @param key The KeyCode for which the associated Throttle needs to be returned.
@@ -142,90 +178,103 @@ public class HomeController implements Initializable {
     }
 
     /**
-     * Returns the KeyCode that is associated with the action that is opposite to the action associated with the given
-     * KeyCode.
-     * @param key The key for which the opposite key needs to be returned.
-     * @return The KeyCode that is associated with the action that is opposite to the action associated with the given
-     * KeyCode, or null if the given KeyCode has no opposite in this piece of software.
+     * Returns the most recently pressed of the two given keys.
+     * @param key The first key.
+     * @param other The second key.
+     * @return The key among the two that is pressed and was pressed last, or null if neither is pressed.
      */
-    private KeyCode getOppositeKey(KeyCode key) {
-        KeyCode opposite = null;
-        switch (key) {
-            case UP:
-                opposite = KeyCode.DOWN;
-                break;
-            case DOWN:
-                opposite = KeyCode.UP;
-                break;
-            case LEFT:
-                opposite = KeyCode.RIGHT;
-                break;
-            case RIGHT:
-                opposite = KeyCode.LEFT;
-                break;
+    private KeyCode getLastPressed(KeyCode key, KeyCode other) {
+        long keyPress = keyPressed.get(key);
+        long otherPress = keyPressed.get(other);
+        if (keyPress == RELEASED && otherPress == RELEASED) {
+            return null;
         }
-        return opposite;
-    }
-
-    /**
-     * Tells the DrivingController to throttle.
-     * @param dir The direction to Throttle in.
-     */
-    private void throttle(Throttle dir) {
-        drivingController.throttle(dir);
+        return keyPress > otherPress ? key : other;
     }
 
     /**
-     * Tells the DrivingController to steer.
-     * @param dir The direction to steer in.
+     * Turns the current keyboard and mouse state into driving commands. Runs on the InputSampler thread at a fixed
+     * rate; the car only notifies the connection of values that actually changed.
      */
-    private void steer(Steer dir) {
-        drivingController.steer(dir);
+    private void sampleInput() {
+        if (dragging) {
+            drivingController.steer(dragAngle);
+            drivingController.throttle(dragThrottle, dragPower);
+            return;
+        }
+        KeyCode throttleKey = getLastPressed(KeyCode.UP, KeyCode.DOWN);
+        drivingController.throttle(throttleKey == null ? Throttle.NEUTRAL : getThrottleFromKey(throttleKey));
+        KeyCode steerKey = getLastPressed(KeyCode.LEFT, KeyCode.RIGHT);
+        drivingController.steer(steerKey == null ? Steer.NEUTRAL : getSteerFromKey(steerKey));
     }
 
     /**
-     * Sets up the keyboard event listeners related to driving the car.
+     * Sets up the keyboard event listeners related to driving the car. The listeners only record which keys are
+     * pressed; the InputSampler turns that into driving commands.
      */
     private void setKeyboardHandlers() {
         logger.log(Level.INFO, "Initialising keyboard handlers");
 
         scene.setOnKeyPressed(e -> {
-            KeyCode key = e.getCode();
-            if (keyPressed.containsKey(key)) {
-                keyPressed.put(key, true);
-                if (isThrottleKey(key)) {
-                    throttle(getThrottleFromKey(key));
-                } else if (isSteerKey(key)) {
-                    steer(getSteerFromKey(key));
-                }
-            }
+            // Auto-repeated presses of a key that is held down do not change the order in which keys were pressed
+            keyPressed.replace(e.getCode(), RELEASED, keyPresses.incrementAndGet());
         });
 
         scene.setOnKeyReleased(e -> {
             KeyCode key = e.getCode();
             if (keyPressed.containsKey(key)) {
-                keyPressed.put(key, false);
-                KeyCode opposite = getOppositeKey(key);
-                boolean oppositePressed = keyPressed.get(opposite);
-
-                if (isThrottleKey(key)) {
-                    throttle(oppositePressed ? getThrottleFromKey(opposite) : Throttle.NEUTRAL);
-                } else if (isSteerKey(key)) {
-                    steer(oppositePressed ? getSteerFromKey(opposite) : Steer.NEUTRAL);
-                }
+                keyPressed.put(key, RELEASED);
             }
         });
     }
 
     /**
-     * Sets up the keyboard event listeners and shutdown event listeners.
+     * Sets up the proportional driving mode: dragging the mouse horizontally steers proportionally to the distance
+     * dragged, and dragging it up or down throttles forward or in reverse with a power proportional to the distance.
+     * Releasing the mouse neutralises the car. While dragging, the keyboard is ignored.
+     */
+    private void setMouseHandlers() {
+        logger.log(Level.INFO, "Initialising mouse handlers");
+
+        scene.setOnMousePressed(e -> {
+            dragStartX = e.getSceneX();
+            dragStartY = e.getSceneY();
+            dragAngle = Protocol.getDegreesFromSteer(Steer.NEUTRAL);
+            dragThrottle = Throttle.NEUTRAL;
+            dragPower = Protocol.MAX_POWER;
+            dragging = true;
+        });
+
+        scene.setOnMouseDragged(e -> {
+            double dx = Math.max(-DRAG_RANGE, Math.min(DRAG_RANGE, e.getSceneX() - dragStartX));
+            double dy = Math.max(-DRAG_RANGE, Math.min(DRAG_RANGE, dragStartY - e.getSceneY()));
+            int neutralAngle = Protocol.getDegreesFromSteer(Steer.NEUTRAL);
+            dragAngle = (int) Math.round(neutralAngle + dx / DRAG_RANGE * neutralAngle);
+            if (Math.abs(dy) < DRAG_DEAD_ZONE) {
+                dragThrottle = Throttle.NEUTRAL;
+            } else {
+                dragPower = (int) Math.round(Math.abs(dy) / DRAG_RANGE * Protocol.MAX_POWER);
+                dragThrottle = dy > 0 ? Throttle.FORWARD : Throttle.REVERSE;
+            }
+        });
+
+        scene.setOnMouseReleased(e -> {
+            // The keyboard state takes over again, which neutralises the car if no keys are pressed
+            dragging = false;
+        });
+    }
+
+    /**
+     * Sets up the keyboard and mouse event listeners and shutdown event listeners.
      */
     private void setEventHandlers() {
         setKeyboardHandlers();
+        setMouseHandlers();
         stage.setOnCloseRequest(e -> {
-            if (connController.isActive()) {
-                connController.disconnect();
-            }
+            inputSampler.stop();
+            dashboard.stop();
+            // Also stops a reconnect that may be in progress
+            connController.disconnect();
             stage.close();
         });
     }
@@ -2,18 +2,26 @@ package model;
 
 import util.Protocol;
 
-import java.util.Observable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Car extends Observable {
-    private boolean active;
-    private Throttle throttle;
-    private int steer;
+public class Car {
+    private final AtomicLong state;
+    private final CopyOnWriteArrayList<CarListener> listeners;
+    private final AtomicInteger pendingDispatches;
+    private final TelemetryBuffer telemetry;
+    private long dispatchedState;
 
     /**
      * Creates a new Car.
      */
     public Car() {
-        active = false;
+        state = new AtomicLong(CarState.INITIAL);
+        listeners = new CopyOnWriteArrayList<>();
+        pendingDispatches = new AtomicInteger();
+        telemetry = new TelemetryBuffer();
+        dispatchedState = CarState.INITIAL;
     }
 
 
@@ -22,15 +30,78 @@ public class Car extends Observable {
     // -----------------------------------------------------------------------------------------------------------------
 
     public boolean isActive() {
-        return active;
+        return CarState.isActive(state.get());
     }
 
     public Throttle getThrottle() {
-        return throttle;
+        return CarState.getThrottle(state.get());
     }
 
     public int getSteer() {
-        return steer;
+        return CarState.getSteer(state.get());
+    }
+
+    public int getPower() {
+        return CarState.getPower(state.get());
+    }
+
+    /**
+     * Returns the telemetry samples most recently reported by this Car, which are added by the connection to the car.
+     * @return The telemetry buffer of this Car.
+     */
+    public TelemetryBuffer getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Returns a consistent snapshot of the steering angle, throttle direction and active status of this Car.
+     * @return The packed state of this Car, to be read with the CarState methods.
+     */
+    public long getState() {
+        return state.get();
+    }
+
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // LISTENERS
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a listener that is notified whenever the state of this Car changes.
+     * @param listener The listener to register.
+     */
+    public void addListener(CarListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener registered before.
+     * @param listener The listener to remove.
+     */
+    public void removeListener(CarListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners of the latest state. If another thread is already notifying, it is left to that thread to
+     * notify the latest state as well, so concurrent changes are coalesced instead of blocking the calling thread.
+     */
+    private void dispatch() {
+        if (pendingDispatches.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            long current = state.get();
+            if (current != dispatchedState) {
+                long previous = dispatchedState;
+                dispatchedState = current;
+                for (CarListener listener : listeners) {
+                    listener.carChanged(this, previous, current);
+                }
+            }
+            missed = pendingDispatches.addAndGet(-missed);
+        } while (missed != 0);
     }
 
 
@@ -43,17 +114,40 @@ public class Car extends Observable {
      * @param active True if the Car's status should be active, false otherwise.
      */
     public void setActive(boolean active) {
-        this.active = active;
+        long previous;
+        long next;
+        do {
+            previous = state.get();
+            next = CarState.withActive(previous, active);
+        } while (!state.compareAndSet(previous, next));
+        if (next != previous) {
+            dispatch();
+        }
     }
 
     /**
-     * Throttles the car in the given direction, or neutralises throttle.
+     * Throttles the car in the given direction at full power, or neutralises throttle.
      * @param dir The direction to throttle in (Throttle.NEUTRAL, Throttle.FORWARD, or Throttle.NEUTRAL).
      */
     public void throttle(Throttle dir) {
-        throttle = dir;
-        setChanged();
-        notifyObservers();
+        throttle(dir, Protocol.MAX_POWER);
+    }
+
+    /**
+     * Throttles the car in the given direction with the given power, or neutralises throttle.
+     * @param dir The direction to throttle in (Throttle.NEUTRAL, Throttle.FORWARD, or Throttle.NEUTRAL).
+     * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     */
+    public void throttle(Throttle dir, int power) {
+        long previous;
+        long next;
+        do {
+            previous = state.get();
+            next = CarState.withThrottle(previous, dir, power);
+        } while (!state.compareAndSet(previous, next));
+        if (next != previous) {
+            dispatch();
+        }
     }
 
     /**
@@ -61,9 +155,15 @@ public class Car extends Observable {
      * @param angle The direction to steer towards, given as an angle in degrees.
      */
     public void steer(int angle) {
-        steer = angle;
-        setChanged();
-        notifyObservers();
+        long previous;
+        long next;
+        do {
+            previous = state.get();
+            next = CarState.withSteer(previous, angle);
+        } while (!state.compareAndSet(previous, next));
+        if (next != previous) {
+            dispatch();
+        }
     }
 
     /**
@@ -75,10 +175,19 @@ public class Car extends Observable {
     }
 
     /**
-     * Resets both the throttle and steering direction of the car to the neutral state.
+     * Resets both the throttle and steering direction of the car to the neutral state, as a single change.
      */
     public void reset() {
-        throttle(Throttle.NEUTRAL);
-        steer(Steer.NEUTRAL);
+        int neutralAngle = Protocol.getDegreesFromSteer(Steer.NEUTRAL);
+        long previous;
+        long next;
+        do {
+            previous = state.get();
+            long neutralThrottle = CarState.withThrottle(previous, Throttle.NEUTRAL, Protocol.MAX_POWER);
+            next = CarState.withSteer(neutralThrottle, neutralAngle);
+        } while (!state.compareAndSet(previous, next));
+        if (next != previous) {
+            dispatch();
+        }
     }
 }
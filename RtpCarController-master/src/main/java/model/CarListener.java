@@ -0,0 +1,16 @@
+package model;
+
+/**
+ * Listener notified when the state of a Car changes.
+ */
+public interface CarListener {
+    /**
+     * Called after the state of the given Car changed. Changes made in quick succession, possibly from several
+     * threads, may be coalesced into a single call; the current state is always the latest one, and previous is the
+     * state passed as current in the call before, so that no change is lost. Calls for the same Car never overlap.
+     * @param car The Car whose state changed.
+     * @param previous The packed state (see CarState) before the change.
+     * @param current The packed state (see CarState) after the change.
+     */
+    void carChanged(Car car, long previous, long current);
+}
@@ -0,0 +1,118 @@
+package model;
+
+import util.Protocol;
+
+/**
+ * Helper methods for the packed state of a Car. The steering angle, throttle direction and power and active status are
+ * packed into a single long, so that the whole state can be updated atomically and read as one consistent snapshot.
+ *
+ * Layout: bits 0-15 hold the steering angle (signed), bits 16-23 the throttle ordinal (0xFF if the car has not been
+ * throttled yet), bit 24 the active status and bits 25-31 the throttle power as a percentage.
+ */
+public final class CarState {
+    private static final Throttle[] THROTTLES = Throttle.values();
+    private static final int THROTTLE_SHIFT = 16;
+    private static final long THROTTLE_MASK = 0xFFL << THROTTLE_SHIFT;
+    private static final long NO_THROTTLE = 0xFF;
+    private static final long STEER_MASK = 0xFFFFL;
+    private static final long ACTIVE_BIT = 1L << 24;
+    private static final int POWER_SHIFT = 25;
+    private static final long POWER_MASK = 0x7FL << POWER_SHIFT;
+
+    /**
+     * The state of a new Car: not active, not throttled (at full power once throttled) and steering at 0 degrees.
+     */
+    public static final long INITIAL = NO_THROTTLE << THROTTLE_SHIFT | (long) Protocol.MAX_POWER << POWER_SHIFT;
+
+    private CarState() {
+    }
+
+    /**
+     * Returns the steering angle of the given state.
+     * @param state The packed state.
+     * @return The steering angle in degrees.
+     */
+    public static int getSteer(long state) {
+        return (short) (state & STEER_MASK);
+    }
+
+    /**
+     * Returns the throttle direction of the given state.
+     * @param state The packed state.
+     * @return The throttle direction, or null if the car has not been throttled yet.
+     */
+    public static Throttle getThrottle(long state) {
+        int ordinal = (int) ((state & THROTTLE_MASK) >>> THROTTLE_SHIFT);
+        return ordinal == NO_THROTTLE ? null : THROTTLES[ordinal];
+    }
+
+    /**
+     * Returns the throttle power of the given state.
+     * @param state The packed state.
+     * @return The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     */
+    public static int getPower(long state) {
+        return (int) ((state & POWER_MASK) >>> POWER_SHIFT);
+    }
+
+    /**
+     * Returns the active status of the given state.
+     * @param state The packed state.
+     * @return True if the car is active.
+     */
+    public static boolean isActive(long state) {
+        return (state & ACTIVE_BIT) != 0;
+    }
+
+    /**
+     * Returns the given state with its steering angle replaced.
+     * @param state The packed state.
+     * @param angle The new steering angle, which must fit in a short.
+     * @return The new packed state.
+     */
+    public static long withSteer(long state, int angle) {
+        return (state & ~STEER_MASK) | (angle & STEER_MASK);
+    }
+
+    /**
+     * Returns the given state with its throttle direction replaced.
+     * @param state The packed state.
+     * @param dir The new throttle direction.
+     * @return The new packed state.
+     */
+    public static long withThrottle(long state, Throttle dir) {
+        return (state & ~THROTTLE_MASK) | ((long) dir.ordinal() << THROTTLE_SHIFT);
+    }
+
+    /**
+     * Returns the given state with its throttle direction and power replaced.
+     * @param state The packed state.
+     * @param dir The new throttle direction.
+     * @param power The new throttle power as a percentage, which is limited to between 0 and Protocol.MAX_POWER.
+     * @return The new packed state.
+     */
+    public static long withThrottle(long state, Throttle dir, int power) {
+        long throttled = withThrottle(state, dir) & ~POWER_MASK;
+        return throttled | (long) Protocol.clampPower(power) << POWER_SHIFT;
+    }
+
+    /**
+     * Returns the given state with its active status replaced.
+     * @param state The packed state.
+     * @param active The new active status.
+     * @return The new packed state.
+     */
+    public static long withActive(long state, boolean active) {
+        return active ? state | ACTIVE_BIT : state & ~ACTIVE_BIT;
+    }
+
+    /**
+     * Returns whether the steering angle, throttle direction or throttle power differ between the given states.
+     * @param previous The earlier packed state.
+     * @param current The later packed state.
+     * @return True if the car should be sent a command for the change from the earlier to the later state.
+     */
+    public static boolean isDrivingChanged(long previous, long current) {
+        return ((previous ^ current) & (STEER_MASK | THROTTLE_MASK | POWER_MASK)) != 0;
+    }
+}
@@ -0,0 +1,208 @@
+package model;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-capacity ring buffer of the telemetry samples reported by a car, stored in preallocated primitive arrays so
+ * that recording a sample neither allocates nor boxes. Samples are numbered from 0 in the order they were added; once
+ * the buffer is full, every new sample overwrites the oldest one.
+ *
+ * A single thread (the one reading from the car's connection) adds samples. Any number of threads may read them
+ * without locking: a reader copies the samples it wants and afterwards discards those that the writer may have
+ * overwritten in the meantime, so it never observes a half-written sample.
+ */
+public class TelemetryBuffer {
+    /** The number of samples kept if no capacity is given, which covers 10 to 20 seconds at 50 to 100 Hz. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int mask;
+    private final long[] timestamps;
+    private final int[] speeds;
+    private final int[] batteries;
+    private final int[] headings;
+    // The number of samples added so far; written only by the writer, after the sample itself
+    private final AtomicLong count;
+
+    /**
+     * Creates a new TelemetryBuffer holding the last TelemetryBuffer.DEFAULT_CAPACITY samples.
+     */
+    public TelemetryBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new TelemetryBuffer.
+     * @param capacity The number of samples to keep, which is rounded up to a power of two.
+     */
+    public TelemetryBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid telemetry capacity: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        timestamps = new long[size];
+        speeds = new int[size];
+        batteries = new int[size];
+        headings = new int[size];
+        count = new AtomicLong();
+    }
+
+    /**
+     * Returns the number of samples this buffer keeps.
+     * @return The capacity of this buffer.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of samples added since this buffer was created, which is also the number the next sample
+     * will get.
+     * @return The total number of samples added, including those that were overwritten.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest one if the buffer is full. May only be called by a single thread.
+     * @param timestamp The time at which the car took the sample, in microseconds of the car's clock.
+     * @param speed The speed of the car in millimetres per second, negative when reversing.
+     * @param battery The battery voltage in millivolts.
+     * @param heading The heading of the car in tenths of a degree.
+     */
+    public void add(long timestamp, int speed, int battery, int heading) {
+        long next = count.get();
+        int index = (int) next & mask;
+        // Keeps the overwriting of the oldest sample from becoming visible before the count of the previous sample,
+        // which readers rely on to detect it
+        VarHandle.storeStoreFence();
+        timestamps[index] = timestamp;
+        speeds[index] = speed;
+        batteries[index] = battery;
+        headings[index] = heading;
+        // Publishes the sample to readers, which read the count before the sample
+        count.set(next + 1);
+    }
+
+    /**
+     * Copies the samples starting at the given sample number into the given snapshot, oldest first. Samples that were
+     * already overwritten are skipped, so the snapshot may start at a later number than requested; a consumer that
+     * keeps up incrementally continues at snapshot.getNext().
+     * @param from The number of the first sample to copy.
+     * @param snapshot The snapshot receiving the samples; at most its capacity is copied.
+     * @return The number of samples copied.
+     */
+    public int read(long from, Snapshot snapshot) {
+        long end = count.get();
+        long start = Math.max(from, end - getCapacity());
+        int length = (int) Math.max(0, Math.min(snapshot.getCapacity(), end - start));
+        for (int i = 0; i < length; i++) {
+            int index = (int) (start + i) & mask;
+            snapshot.timestamps[i] = timestamps[index];
+            snapshot.speeds[i] = speeds[index];
+            snapshot.batteries[i] = batteries[index];
+            snapshot.headings[i] = headings[index];
+        }
+        // Keeps the copies above from being reordered after the count is read again
+        VarHandle.acquireFence();
+        // The writer may be writing sample number count, which overwrites sample number count - capacity
+        long oldestIntact = count.get() - getCapacity() + 1;
+        int overwritten = (int) Math.max(0, Math.min(length, oldestIntact - start));
+        snapshot.set(start + overwritten, overwritten, length - overwritten);
+        return length - overwritten;
+    }
+
+    /**
+     * Copies the most recent samples into the given snapshot, oldest first.
+     * @param snapshot The snapshot receiving the samples; at most its capacity is copied.
+     * @return The number of samples copied.
+     */
+    public int readLatest(Snapshot snapshot) {
+        return read(getCount() - snapshot.getCapacity(), snapshot);
+    }
+
+    /**
+     * A consumer-owned copy of consecutive samples of a TelemetryBuffer. A consumer creates one up front and reuses it
+     * for every read, so that reading does not allocate either.
+     */
+    public static class Snapshot {
+        private final long[] timestamps;
+        private final int[] speeds;
+        private final int[] batteries;
+        private final int[] headings;
+        private long first;
+        private int length;
+
+        /**
+         * Creates a new, empty Snapshot.
+         * @param capacity The maximum number of samples a single read copies.
+         */
+        public Snapshot(int capacity) {
+            timestamps = new long[capacity];
+            speeds = new int[capacity];
+            batteries = new int[capacity];
+            headings = new int[capacity];
+        }
+
+        /**
+         * Records which samples the last read copied, moving them to the start of the arrays if the first ones had
+         * to be discarded.
+         */
+        private void set(long first, int offset, int length) {
+            if (offset > 0) {
+                System.arraycopy(timestamps, offset, timestamps, 0, length);
+                System.arraycopy(speeds, offset, speeds, 0, length);
+                System.arraycopy(batteries, offset, batteries, 0, length);
+                System.arraycopy(headings, offset, headings, 0, length);
+            }
+            this.first = first;
+            this.length = length;
+        }
+
+        public int getCapacity() {
+            return timestamps.length;
+        }
+
+        /**
+         * Returns the number of samples copied by the last read.
+         * @return The number of valid samples in this snapshot.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the number of the first sample copied by the last read.
+         * @return The sample number of index 0 of this snapshot.
+         */
+        public long getFirst() {
+            return first;
+        }
+
+        /**
+         * Returns the number of the sample following the last one copied by the last read.
+         * @return The sample number to continue reading at.
+         */
+        public long getNext() {
+            return first + length;
+        }
+
+        public long getTimestamp(int index) {
+            return timestamps[index];
+        }
+
+        public int getSpeed(int index) {
+            return speeds[index];
+        }
+
+        public int getBattery(int index) {
+            return batteries[index];
+        }
+
+        public int getHeading(int index) {
+            return headings[index];
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package util;
+
+/**
+ * Reduces long series of samples to a number of points that can be drawn every frame, using the Largest-Triangle-
+ * Three-Buckets algorithm (Steinarsson, 2013). The series is split into equally sized buckets and from every bucket
+ * the point forming the largest triangle with the point picked from the previous bucket and the average of the next
+ * bucket is kept, which preserves the peaks and the visual shape of the series far better than keeping every n-th
+ * point. Downsampling runs in linear time and writes into arrays owned by the caller, so it does not allocate.
+ */
+public class Downsampler {
+    private Downsampler() {
+    }
+
+    /**
+     * Downsamples the given series to at most the given number of points. The first and last point are always kept.
+     * @param x The x values of the series, in ascending order.
+     * @param y The y values of the series.
+     * @param length The number of samples in the series, starting at index 0.
+     * @param outX The array receiving the x values of the kept points.
+     * @param outY The array receiving the y values of the kept points.
+     * @param threshold The maximum number of points to keep, at most the length of the output arrays.
+     * @return The number of points written to the output arrays.
+     */
+    public static int lttb(double[] x, double[] y, int length, double[] outX, double[] outY, int threshold) {
+        if (threshold >= length) {
+            System.arraycopy(x, 0, outX, 0, length);
+            System.arraycopy(y, 0, outY, 0, length);
+            return length;
+        }
+        if (threshold < 3) {
+            // Too few points for buckets: keep the first and last point only
+            int count = Math.max(threshold, 0);
+            if (count > 0) {
+                outX[0] = x[0];
+                outY[0] = y[0];
+            }
+            if (count > 1) {
+                outX[1] = x[length - 1];
+                outY[1] = y[length - 1];
+            }
+            return count;
+        }
+        // The first and last point are kept on their own; the others are divided over threshold - 2 buckets
+        double bucketSize = (double) (length - 2) / (threshold - 2);
+        int picked = 0;
+        outX[0] = x[0];
+        outY[0] = y[0];
+        int count = 1;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket, or the last point for the last bucket
+            int nextStart = (int) ((bucket + 1) * bucketSize) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, length);
+            double averageX = 0;
+            double averageY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            int nextCount = nextEnd - nextStart;
+            averageX /= nextCount;
+            averageY /= nextCount;
+
+            int start = (int) (bucket * bucketSize) + 1;
+            int end = (int) ((bucket + 1) * bucketSize) + 1;
+            double pickedX = x[picked];
+            double pickedY = y[picked];
+            double maxArea = -1;
+            int next = start;
+            for (int i = start; i < end; i++) {
+                // Twice the area of the triangle; only the comparison matters
+                double area = Math.abs((pickedX - averageX) * (y[i] - pickedY)
+                        - (pickedX - x[i]) * (averageY - pickedY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            outX[count] = x[next];
+            outY[count] = y[next];
+            count++;
+            picked = next;
+        }
+        outX[count] = x[length - 1];
+        outY[count] = y[length - 1];
+        return count + 1;
+    }
+}
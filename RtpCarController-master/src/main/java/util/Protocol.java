@@ -3,6 +3,9 @@ package util;
 import model.Steer;
 import model.Throttle;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public class Protocol {
     public static final String HANDSHAKE = "HANDSHAKE";
     private static final String THROTTLE = "THROTTLE";
@@ -11,6 +14,67 @@ public class Protocol {
     public static final String CLOSE_CONNECTION = "CLOSE";
     public static final int HEARTBEAT_PERIOD = 500;
 
+    /**
+     * Telemetry reported by the car at its own rate (typically 50 to 100 Hz), as a line of text of the form
+     * "TELEMETRY timestamp speed battery heading". All fields are decimal integers: the timestamp in microseconds of
+     * the car's clock, the speed in millimetres per second (negative when reversing), the battery voltage in millivolts
+     * and the heading in tenths of a degree. Cars that do not report telemetry are driven the same way.
+     */
+    public static final String TELEMETRY = "TELEMETRY";
+
+    /**
+     * Handshake extension for the binary framing. A car supporting it sends this line after echoing the handshake; the
+     * client answers with the same line, after which every command from the client is sent as a binary frame. Cars
+     * that never offer it keep receiving the newline-terminated text commands.
+     */
+    public static final String BINARY_HANDSHAKE = HANDSHAKE + " BINARY";
+
+    /**
+     * Handshake extension for stamped text commands. A car supporting it sends this line after echoing the handshake;
+     * the client answers with the same line, after which heartbeats and text commands carry a sequence number and
+     * timestamp, which the car echoes back. Cars that never offer it keep receiving plain text commands.
+     */
+    public static final String STAMPED_HANDSHAKE = HANDSHAKE + " STAMPED";
+
+    // Binary frame layout: opcode (1), steering angle (1), throttle ordinal (1), throttle power (1), sequence number
+    // (4), timestamp in microseconds (4). Multi-byte fields are big-endian. Binary frames are always stamped.
+    public static final int FRAME_SIZE = 12;
+    public static final byte OP_HANDSHAKE = 1;
+    public static final byte OP_HEARTBEAT = 2;
+    public static final byte OP_STEER = 3;
+    public static final byte OP_THROTTLE = 4;
+    public static final byte OP_CLOSE = 5;
+    private static final Throttle[] THROTTLES = Throttle.values();
+
+    /**
+     * The throttle power, as a percentage, of a throttle command without an explicit power. Text throttle commands
+     * only carry the power if it is lower, so cars that do not support proportional throttle keep receiving the same
+     * commands from the keyboard controls.
+     */
+    public static final int MAX_POWER = 100;
+
+    // Pre-encoded, newline-terminated text commands, so that encoding a command does not allocate.
+    public static final int MAX_STEER_ANGLE = 180;
+    public static final int MAX_COMMAND_SIZE = 64;
+    private static final byte[][] STEERING_COMMANDS = new byte[MAX_STEER_ANGLE + 1][];
+    private static final byte[][][] THROTTLE_COMMANDS = new byte[THROTTLES.length][MAX_POWER + 1][];
+    private static final byte[] HANDSHAKE_COMMAND = encode(HANDSHAKE);
+    private static final byte[] BINARY_HANDSHAKE_COMMAND = encode(BINARY_HANDSHAKE);
+    private static final byte[] STAMPED_HANDSHAKE_COMMAND = encode(STAMPED_HANDSHAKE);
+    private static final byte[] HEARTBEAT_COMMAND = encode(HEARTBEAT);
+    private static final byte[] CLOSE_COMMAND = encode(CLOSE_CONNECTION);
+
+    static {
+        for (int angle = 0; angle <= MAX_STEER_ANGLE; angle++) {
+            STEERING_COMMANDS[angle] = encode(getSteeringCommand(angle));
+        }
+        for (Throttle dir : THROTTLES) {
+            for (int power = 0; power <= MAX_POWER; power++) {
+                THROTTLE_COMMANDS[dir.ordinal()][power] = encode(getThrottleCommand(dir, power));
+            }
+        }
+    }
+
     /**
      * Returns the steering angle transformed from a direction to degrees.
      * @param dir The steering direction
@@ -44,6 +108,16 @@ public class Protocol {
         return formatCommand(Protocol.THROTTLE, dir.toString());
     }
 
+    /**
+     * Returns a throttle command with the given throttle direction and power.
+     * @param dir The direction to throttle in.
+     * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     * @return A formatted string that can be sent to the RC Car as a throttling command.
+     */
+    public static String getThrottleCommand(Throttle dir, int power) {
+        return power >= MAX_POWER ? getThrottleCommand(dir) : getThrottleCommand(dir) + " " + power;
+    }
+
     /**
      * Returns a steering command with the given steering direction.
      * @param angle The angle to steer in.
@@ -52,4 +126,259 @@ public class Protocol {
     public static String getSteeringCommand(int angle) {
         return formatCommand(Protocol.STEER, String.valueOf(angle));
     }
+
+    /**
+     * Returns a telemetry message carrying the given sample, as sent by the car.
+     * @param timestamp The time at which the car took the sample, in microseconds of the car's clock.
+     * @param speed The speed of the car in millimetres per second, negative when reversing.
+     * @param battery The battery voltage in millivolts.
+     * @param heading The heading of the car in tenths of a degree.
+     * @return A formatted string as sent by the RC Car to report telemetry.
+     */
+    public static String getTelemetryCommand(long timestamp, int speed, int battery, int heading) {
+        return TELEMETRY + " " + timestamp + " " + speed + " " + battery + " " + heading;
+    }
+
+    /**
+     * Returns the given command encoded as a newline-terminated line of ASCII text.
+     * @param command The command to encode.
+     * @return The bytes to send to the RC Car for the given command.
+     */
+    private static byte[] encode(String command) {
+        return (command + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the newline-terminated text command for the given control message to the given buffer. The common
+     * control messages are pre-encoded, so this does not allocate for them.
+     * @param buffer The buffer to write the command to.
+     * @param message The control message, such as Protocol.HANDSHAKE, Protocol.HEARTBEAT or Protocol.CLOSE_CONNECTION.
+     */
+    public static void putCommand(ByteBuffer buffer, String message) {
+        switch (message) {
+            case HANDSHAKE: buffer.put(HANDSHAKE_COMMAND); break;
+            case BINARY_HANDSHAKE: buffer.put(BINARY_HANDSHAKE_COMMAND); break;
+            case STAMPED_HANDSHAKE: buffer.put(STAMPED_HANDSHAKE_COMMAND); break;
+            case HEARTBEAT: buffer.put(HEARTBEAT_COMMAND); break;
+            case CLOSE_CONNECTION: buffer.put(CLOSE_COMMAND); break;
+            default: buffer.put(encode(message)); break;
+        }
+    }
+
+    /**
+     * Writes the newline-terminated text command for the given control message to the given buffer, followed by the
+     * given sequence number and timestamp. The car echoes the line as-is, which allows the round-trip time to be
+     * measured. Only to be sent to cars that accepted Protocol.STAMPED_HANDSHAKE.
+     * @param buffer The buffer to write the command to.
+     * @param message The control message, such as Protocol.HEARTBEAT.
+     * @param sequence The sequence number of the command.
+     * @param timestamp The time at which the command was created, in microseconds.
+     */
+    public static void putCommand(ByteBuffer buffer, String message, int sequence, int timestamp) {
+        if (message.equals(HEARTBEAT)) {
+            putStamped(buffer, HEARTBEAT_COMMAND, sequence, timestamp);
+        } else {
+            putStamped(buffer, encode(message), sequence, timestamp);
+        }
+    }
+
+    /**
+     * Writes the newline-terminated text throttle command for the given direction to the given buffer, without
+     * allocating.
+     * @param buffer The buffer to write the command to.
+     * @param dir The direction to throttle in.
+     */
+    public static void putThrottleCommand(ByteBuffer buffer, Throttle dir) {
+        putThrottleCommand(buffer, dir, MAX_POWER);
+    }
+
+    /**
+     * Writes the newline-terminated text throttle command for the given direction and power to the given buffer,
+     * without allocating.
+     * @param buffer The buffer to write the command to.
+     * @param dir The direction to throttle in.
+     * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     */
+    public static void putThrottleCommand(ByteBuffer buffer, Throttle dir, int power) {
+        buffer.put(THROTTLE_COMMANDS[dir.ordinal()][clampPower(power)]);
+    }
+
+    /**
+     * Writes the newline-terminated text steering command for the given angle to the given buffer. Angles between 0
+     * and Protocol.MAX_STEER_ANGLE are pre-encoded, so this does not allocate for them.
+     * @param buffer The buffer to write the command to.
+     * @param angle The angle to steer in.
+     */
+    public static void putSteeringCommand(ByteBuffer buffer, int angle) {
+        if (angle >= 0 && angle <= MAX_STEER_ANGLE) {
+            buffer.put(STEERING_COMMANDS[angle]);
+        } else {
+            buffer.put(encode(getSteeringCommand(angle)));
+        }
+    }
+
+    /**
+     * Writes the newline-terminated text throttle command for the given direction to the given buffer, followed by the
+     * given sequence number and timestamp, without allocating.
+     * @param buffer The buffer to write the command to.
+     * @param dir The direction to throttle in.
+     * @param sequence The sequence number of the command.
+     * @param timestamp The time at which the command was created, in microseconds.
+     */
+    public static void putThrottleCommand(ByteBuffer buffer, Throttle dir, int sequence, int timestamp) {
+        putThrottleCommand(buffer, dir, MAX_POWER, sequence, timestamp);
+    }
+
+    /**
+     * Writes the newline-terminated text throttle command for the given direction and power to the given buffer,
+     * followed by the given sequence number and timestamp, without allocating.
+     * @param buffer The buffer to write the command to.
+     * @param dir The direction to throttle in.
+     * @param power The throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     * @param sequence The sequence number of the command.
+     * @param timestamp The time at which the command was created, in microseconds.
+     */
+    public static void putThrottleCommand(ByteBuffer buffer, Throttle dir, int power, int sequence, int timestamp) {
+        putStamped(buffer, THROTTLE_COMMANDS[dir.ordinal()][clampPower(power)], sequence, timestamp);
+    }
+
+    /**
+     * Returns the given throttle power limited to the range from 0 to Protocol.MAX_POWER.
+     * @param power The throttle power as a percentage.
+     * @return The limited throttle power.
+     */
+    public static int clampPower(int power) {
+        return Math.max(0, Math.min(MAX_POWER, power));
+    }
+
+    /**
+     * Writes the newline-terminated text steering command for the given angle to the given buffer, followed by the
+     * given sequence number and timestamp. Angles between 0 and Protocol.MAX_STEER_ANGLE do not allocate.
+     * @param buffer The buffer to write the command to.
+     * @param angle The angle to steer in.
+     * @param sequence The sequence number of the command.
+     * @param timestamp The time at which the command was created, in microseconds.
+     */
+    public static void putSteeringCommand(ByteBuffer buffer, int angle, int sequence, int timestamp) {
+        if (angle >= 0 && angle <= MAX_STEER_ANGLE) {
+            putStamped(buffer, STEERING_COMMANDS[angle], sequence, timestamp);
+        } else {
+            putStamped(buffer, encode(getSteeringCommand(angle)), sequence, timestamp);
+        }
+    }
+
+    /**
+     * Writes the given pre-encoded command without its line terminator, followed by the sequence number and timestamp
+     * as unsigned decimal numbers and a line terminator.
+     */
+    private static void putStamped(ByteBuffer buffer, byte[] command, int sequence, int timestamp) {
+        buffer.put(command, 0, command.length - 1);
+        buffer.put((byte) ' ');
+        putUnsigned(buffer, sequence);
+        buffer.put((byte) ' ');
+        putUnsigned(buffer, timestamp);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Writes the given value as an unsigned decimal number in ASCII, without allocating.
+     */
+    private static void putUnsigned(ByteBuffer buffer, int value) {
+        long remaining = Integer.toUnsignedLong(value);
+        long divisor = 1;
+        while (divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + remaining / divisor));
+            remaining %= divisor;
+        }
+    }
+
+    /**
+     * Returns the binary opcode corresponding to the given text control message.
+     * @param message The control message, being Protocol.HANDSHAKE, Protocol.HEARTBEAT or Protocol.CLOSE_CONNECTION.
+     * @return The opcode of the given control message.
+     * @throws IllegalArgumentException If the given message has no binary equivalent.
+     */
+    public static byte getOpcode(String message) {
+        switch (message) {
+            case HANDSHAKE: return OP_HANDSHAKE;
+            case HEARTBEAT: return OP_HEARTBEAT;
+            case CLOSE_CONNECTION: return OP_CLOSE;
+            default: throw new IllegalArgumentException("No binary opcode for message " + message);
+        }
+    }
+
+    /**
+     * Writes a binary frame with full throttle power to the given buffer at its current position.
+     * @param buffer The buffer to write the frame to; must have at least Protocol.FRAME_SIZE bytes remaining.
+     * @param opcode The type of the frame (one of the Protocol.OP_ constants).
+     * @param angle The current steering angle, between 0 and 180.
+     * @param dir The current throttle direction.
+     * @param sequence The sequence number of the frame.
+     * @param timestamp The time at which the frame was created, in microseconds.
+     */
+    public static void putFrame(ByteBuffer buffer, byte opcode, int angle, Throttle dir, int sequence, int timestamp) {
+        putFrame(buffer, opcode, angle, dir, MAX_POWER, sequence, timestamp);
+    }
+
+    /**
+     * Writes a binary frame to the given buffer at its current position.
+     * @param buffer The buffer to write the frame to; must have at least Protocol.FRAME_SIZE bytes remaining.
+     * @param opcode The type of the frame (one of the Protocol.OP_ constants).
+     * @param angle The current steering angle, between 0 and 180.
+     * @param dir The current throttle direction.
+     * @param power The current throttle power as a percentage, between 0 and Protocol.MAX_POWER.
+     * @param sequence The sequence number of the frame.
+     * @param timestamp The time at which the frame was created, in microseconds.
+     */
+    public static void putFrame(ByteBuffer buffer, byte opcode, int angle, Throttle dir, int power, int sequence,
+                                int timestamp) {
+        buffer.put(opcode)
+                .put((byte) angle)
+                .put((byte) dir.ordinal())
+                .put((byte) clampPower(power))
+                .putInt(sequence)
+                .putInt(timestamp);
+    }
+
+    /**
+     * Returns whether the given sequence number is newer than the last one received, taking wrap-around of the 32-bit
+     * sequence counter into account.
+     * @param sequence The sequence number of the frame that was just received.
+     * @param last The sequence number of the newest frame received before.
+     * @return True if the frame is newer and should be applied, false if it arrived out of order.
+     */
+    public static boolean isNewerSequence(int sequence, int last) {
+        return sequence - last > 0;
+    }
+
+    /**
+     * Returns the text command equivalent to the binary frame at the current position of the given buffer, and
+     * advances the buffer past the frame. Heartbeat, steering and throttle commands are followed by the sequence number
+     * and timestamp of the frame, like the stamped text commands.
+     * @param buffer The buffer to read the frame from.
+     * @return The text command equivalent to the frame, or null if the frame has an unknown opcode.
+     */
+    public static String getCommandFromFrame(ByteBuffer buffer) {
+        byte opcode = buffer.get();
+        int angle = buffer.get() & 0xFF;
+        int dir = buffer.get();
+        int power = buffer.get();
+        int sequence = buffer.getInt();
+        int timestamp = buffer.getInt();
+        String stamp = " " + Integer.toUnsignedString(sequence) + " " + Integer.toUnsignedString(timestamp);
+
+        switch (opcode) {
+            case OP_HANDSHAKE: return HANDSHAKE;
+            case OP_HEARTBEAT: return HEARTBEAT + stamp;
+            case OP_STEER: return getSteeringCommand(angle) + stamp;
+            case OP_THROTTLE:
+                return dir >= 0 && dir < THROTTLES.length
+                        ? getThrottleCommand(THROTTLES[dir], clampPower(power)) + stamp : null;
+            case OP_CLOSE: return CLOSE_CONNECTION;
+            default: return null;
+        }
+    }
 }
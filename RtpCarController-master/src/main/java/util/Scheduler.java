@@ -0,0 +1,34 @@
+package util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Single daemon thread shared by the periodic and delayed tasks of the controller (such as metric dumps), so that
+ * these tasks do not each need a thread of their own. Tasks must be short and must not block.
+ */
+public enum Scheduler {
+    INSTANCE;
+
+    private final ScheduledExecutorService executor;
+
+    private Scheduler() {
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Scheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the shared executor to schedule tasks on.
+     * @return The shared ScheduledExecutorService.
+     */
+    public ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+}
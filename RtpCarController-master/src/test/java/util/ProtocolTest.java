@@ -0,0 +1,103 @@
+package util;
+
+import com.sun.management.ThreadMXBean;
+import model.Throttle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests of the Protocol encoders. The put* methods run for every command on the sending thread, so besides producing
+ * the same bytes as the String-based commands, they must not allocate; this is measured with the per-thread allocation
+ * counter of the JVM.
+ */
+class ProtocolTest {
+    private static final int ITERATIONS = 100_000;
+    private static final Throttle[] THROTTLES = Throttle.values();
+
+    private static ThreadMXBean threads;
+
+    /**
+     * Writes some commands to the given buffer, varying them with the given iteration.
+     */
+    private interface Encoder {
+        void encode(ByteBuffer buffer, int i);
+    }
+
+    @BeforeAll
+    static void enableAllocationCounter() {
+        threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocation counter not supported by this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    void textCommandsDoNotAllocate() {
+        assertNoAllocation((buffer, i) -> {
+            Protocol.putSteeringCommand(buffer, i % (Protocol.MAX_STEER_ANGLE + 1));
+            Protocol.putThrottleCommand(buffer, THROTTLES[i % THROTTLES.length], i % (Protocol.MAX_POWER + 1));
+            Protocol.putCommand(buffer, Protocol.HEARTBEAT);
+        });
+    }
+
+    @Test
+    void stampedCommandsDoNotAllocate() {
+        assertNoAllocation((buffer, i) -> {
+            Protocol.putSteeringCommand(buffer, i % (Protocol.MAX_STEER_ANGLE + 1), i, -i);
+            Protocol.putThrottleCommand(buffer, THROTTLES[i % THROTTLES.length], i % (Protocol.MAX_POWER + 1), i,
+                    -i);
+            Protocol.putCommand(buffer, Protocol.HEARTBEAT, i, -i);
+        });
+    }
+
+    @Test
+    void framesDoNotAllocate() {
+        assertNoAllocation((buffer, i) -> {
+            Protocol.putFrame(buffer, Protocol.OP_STEER, i % (Protocol.MAX_STEER_ANGLE + 1),
+                    THROTTLES[i % THROTTLES.length], i % (Protocol.MAX_POWER + 1), i, -i);
+            Protocol.putFrame(buffer, Protocol.OP_HEARTBEAT, 0, Throttle.NEUTRAL, i, -i);
+        });
+    }
+
+    @Test
+    void stampedCommandsMatchDecodedFrames() {
+        ByteBuffer text = ByteBuffer.allocate(Protocol.MAX_COMMAND_SIZE);
+        ByteBuffer frame = ByteBuffer.allocate(Protocol.FRAME_SIZE);
+        for (int angle = 0; angle <= Protocol.MAX_STEER_ANGLE; angle += 15) {
+            text.clear();
+            frame.clear();
+            Protocol.putSteeringCommand(text, angle, angle * 1000, -angle);
+            Protocol.putFrame(frame, Protocol.OP_STEER, angle, Throttle.NEUTRAL, angle * 1000, -angle);
+            frame.flip();
+            assertEquals(Protocol.getCommandFromFrame(frame) + "\n",
+                    new String(text.array(), 0, text.position(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Runs the given encoder until it is compiled, and then asserts that running it many more times allocates nothing
+     * on this thread.
+     */
+    private static void assertNoAllocation(Encoder encoder) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.max(Protocol.FRAME_SIZE, Protocol.MAX_COMMAND_SIZE));
+        long thread = Thread.currentThread().getId();
+        run(encoder, buffer);
+        long before = threads.getThreadAllocatedBytes(thread);
+        run(encoder, buffer);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(0, allocated, "Bytes allocated by " + ITERATIONS + " iterations");
+    }
+
+    private static void run(Encoder encoder, ByteBuffer buffer) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            buffer.clear();
+            encoder.encode(buffer, i);
+        }
+    }
+}